@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package com.yet.dsync.dao;
+
+import com.yet.dsync.dto.DropboxChangeType;
+import com.yet.dsync.dto.DropboxFileData;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares metadata store backends on the workload of the client: store of
+ * 2M rows, point lookups by id and by path, and bursts of small updates as
+ * they come from listed pages and finished downloads. Run with
+ *
+ * <pre>
+ * mvn -P benchmark package -DskipTests
+ * java -jar target/benchmarks.jar MetadataStoreBenchmark
+ * </pre>
+ *
+ * Number of rows is changed with {@code -p rows=N}. Filling the store takes
+ * most of the trial time, so each backend is filled once per fork.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class MetadataStoreBenchmark {
+
+    /* Rows changed by one burst, about a listed page of changes */
+    private static final int BURST_SIZE = 50;
+
+    private static final int FILL_BATCH_SIZE = 10_000;
+
+    private static final int FILES_PER_FOLDER = 1000;
+
+    private static final String DB_NAME = "benchmark.db";
+
+    @Param({"SQLITE", "LOG"})
+    private MetadataStoreFactory.Backend backend;
+
+    @Param("2000000")
+    private int rows;
+
+    private File dbDir;
+    private Database database;
+    private MetadataStore store;
+
+    private final AtomicLong revision = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dbDir = Files.createTempDirectory("dsync-benchmark").toFile();
+
+        final DatabaseInit dbInit = new DatabaseInit();
+        database = dbInit.createDatabase(dbDir.getAbsolutePath(), DB_NAME);
+        dbInit.migrate(database);
+        store = MetadataStoreFactory.create(backend, database, dbDir.getAbsolutePath(), DB_NAME);
+
+        final List<DropboxFileData> batch = new ArrayList<>(FILL_BATCH_SIZE);
+        for (int i = 0; i < rows; i++) {
+            batch.add(createFileData(i, "0"));
+            if (batch.size() == FILL_BATCH_SIZE) {
+                store.writeAllLoaded(batch);
+                batch.clear();
+            }
+        }
+        store.writeAllLoaded(batch);
+        store.whenDurable().join();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        store.whenDurable().join();
+        database.close();
+        FileUtils.deleteDirectory(dbDir);
+    }
+
+    @Benchmark
+    public DropboxFileData readById() {
+        return store.readById(id(randomRow()));
+    }
+
+    @Benchmark
+    public DropboxFileData readByLowerPath() {
+        return store.readByLowerPath(path(randomRow()).toLowerCase(Locale.getDefault()));
+    }
+
+    /**
+     * Writing new revisions of random rows and marking them loaded, then
+     * waiting until they are durable, as the listing does before it moves
+     * its cursor.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BURST_SIZE)
+    public void updateBurst() {
+        writeBurst();
+        store.whenDurable().join();
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(3)
+    public void mixedLookups(final Blackhole blackhole) {
+        final int row = randomRow();
+        blackhole.consume(store.readById(id(row)));
+        blackhole.consume(store.readByLowerPath(path(row).toLowerCase(Locale.getDefault())));
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    @OperationsPerInvocation(BURST_SIZE)
+    public void mixedUpdateBurst() {
+        writeBurst();
+        store.whenDurable().join();
+    }
+
+    private void writeBurst() {
+        final String rev = Long.toString(revision.incrementAndGet());
+        final List<DropboxFileData> page = new ArrayList<>(BURST_SIZE);
+        for (int i = 0; i < BURST_SIZE; i++) {
+            page.add(createFileData(randomRow(), rev));
+        }
+        store.writePage(page, () -> { });
+        page.forEach(fileData -> store.writeLoadedFlag(fileData.getId()));
+    }
+
+    private int randomRow() {
+        return ThreadLocalRandom.current().nextInt(rows);
+    }
+
+    private static String id(final int row) {
+        return "id:" + row;
+    }
+
+    private static String path(final int row) {
+        return "/Folder " + row / FILES_PER_FOLDER + "/File " + row + ".txt";
+    }
+
+    private static DropboxFileData createFileData(final int row, final String rev) {
+        final String path = path(row);
+        final LocalDateTime modified = LocalDateTime.of(2020, 1, 1, 0, 0).plusSeconds(row);
+        return DropboxFileData.builder()
+            .changeType(DropboxChangeType.FILE)
+            .id(id(row))
+            .rev("rev" + row + "-" + rev)
+            .pathDisplay(path)
+            .pathLower(path.toLowerCase(Locale.getDefault()))
+            .size((long) row)
+            .serverModified(modified)
+            .clientModified(modified)
+            .contentHash(String.format("%064x", row))
+            .build();
+    }
+
+}
@@ -15,14 +15,23 @@
 package com.yet.dsync;
 
 import com.yet.dsync.dao.ConfigDao;
+import com.yet.dsync.dao.Database;
 import com.yet.dsync.dao.DatabaseInit;
-import com.yet.dsync.dao.MetadataDao;
+import com.yet.dsync.dao.LocalStateDao;
+import com.yet.dsync.dao.MetadataStore;
+import com.yet.dsync.dao.MetadataStoreFactory;
+import com.yet.dsync.dao.PendingDeleteDao;
+import com.yet.dsync.dao.UploadSessionDao;
 import com.yet.dsync.dto.UserData;
 import com.yet.dsync.exception.DSyncClientException;
+import com.yet.dsync.service.ContentHashService;
 import com.yet.dsync.service.DownloadService;
 import com.yet.dsync.service.DropboxService;
 import com.yet.dsync.service.GlobalOperationsTracker;
 import com.yet.dsync.service.LocalFolderService;
+import com.yet.dsync.service.LocalStateService;
+import com.yet.dsync.service.MetadataCompactor;
+import com.yet.dsync.service.RemoteMoveDetector;
 import com.yet.dsync.service.UploadService;
 import com.yet.dsync.util.Config;
 import lombok.SneakyThrows;
@@ -36,7 +45,6 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.File;
-import java.sql.Connection;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -45,12 +53,19 @@ public class DSyncClient {
 
     private static final Logger LOG = LogManager.getLogger(DSyncClient.class);
 
+    private static final String WAL_SUFFIX = "-wal";
+    private static final String SHM_SUFFIX = "-shm";
+
     private DropboxService dropboxService;
     private LocalFolderService localFolderService;
     private DownloadService downloadService;
     private UploadService uploadService;
+    private LocalStateService localStateService;
     private ConfigDao configDao;
-    private MetadataDao metadataDao;
+    private MetadataStore metadataStore;
+    private UploadSessionDao uploadSessionDao;
+    private LocalStateDao localStateDao;
+    private PendingDeleteDao pendingDeleteDao;
 
     @SneakyThrows
     public static void main(final String[] args) {
@@ -99,7 +114,10 @@ public class DSyncClient {
             initialSync();
         }
 
+        new MetadataCompactor(metadataStore).start();
+
         downloadService.downloadAllNotLoaded();
+        uploadService.resumeAllNotFinished();
 
         final ExecutorService pool = Executors.newFixedThreadPool(2);
 
@@ -125,6 +143,10 @@ public class DSyncClient {
             if (!fileDeleteResult) {
                 throw new DSyncClientException("Failed to delete previous configuration");
             }
+            /* WAL left from previous database would be applied to the new one */
+            deleteIfExists(new File(dbPathFile.getPath() + WAL_SUFFIX));
+            deleteIfExists(new File(dbPathFile.getPath() + SHM_SUFFIX));
+            deleteIfExists(MetadataStoreFactory.getLogPath(dbPathFile.getParent(), dbPathFile.getName()).toFile());
         }
 
         final File dbDir = dbPathFile.getParentFile();
@@ -132,24 +154,30 @@ public class DSyncClient {
             throw new DSyncClientException("Failed to create directories for new configuration file");
         }
 
-        final boolean firstRun = reset || !dbPathFile.exists();
-
         LOG.debug("Using database at {}", dbPathFile::getAbsolutePath);
 
         final String dbName = dbPathFile.getName();
 
         final DatabaseInit dbInit = new DatabaseInit();
 
-        @SuppressWarnings("PMD.CloseResource")
-        final Connection connection = dbInit.createConnection(dbDir.getAbsolutePath(), dbName);
-        if (firstRun) {
-            LOG.debug("Creating database tables");
-            dbInit.createTables(connection);
-            LOG.debug("Tables created successfully");
-        }
+        final Database database = dbInit.createDatabase(dbDir.getAbsolutePath(), dbName);
+        dbInit.migrate(database);
+
+        configDao = new ConfigDao(database);
+        metadataStore = MetadataStoreFactory.open(database, dbDir.getAbsolutePath(), dbName);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            metadataStore.whenDurable().join();
+            database.close();
+        }, "database-close"));
+        uploadSessionDao = new UploadSessionDao(database);
+        localStateDao = new LocalStateDao(database);
+        pendingDeleteDao = new PendingDeleteDao(database);
+    }
 
-        configDao = new ConfigDao(connection);
-        metadataDao = new MetadataDao(connection);
+    private static void deleteIfExists(final File file) {
+        if (file.exists() && !file.delete()) {
+            throw new DSyncClientException("Failed to delete previous configuration file " + file);
+        }
     }
 
     private void initServices() {
@@ -158,8 +186,13 @@ public class DSyncClient {
         localFolderService = new LocalFolderService(configDao, globalOperationsTracker);
         dropboxService = new DropboxService(configDao);
 
-        downloadService = new DownloadService(globalOperationsTracker, metadataDao, localFolderService, dropboxService);
-        uploadService = new UploadService(globalOperationsTracker, metadataDao, localFolderService, dropboxService);
+        final ContentHashService contentHashService = new ContentHashService();
+        localStateService = new LocalStateService(localStateDao, contentHashService);
+
+        downloadService = new DownloadService(globalOperationsTracker, metadataStore, pendingDeleteDao,
+                localFolderService, dropboxService, contentHashService, localStateService);
+        uploadService = new UploadService(globalOperationsTracker, metadataStore, uploadSessionDao, pendingDeleteDao,
+                localFolderService, dropboxService, localStateService);
     }
 
     private void startServices() {
@@ -184,20 +217,24 @@ public class DSyncClient {
     }
 
     private void initialSync() {
-        final Runnable syncThread = dropboxService.createInitialSyncThread(fileDataSet -> {
+        final Runnable syncThread = dropboxService.createInitialSyncThread((fileDataSet, checkpoint) -> {
             fileDataSet.forEach(fd -> LOG.info("DROPBOX {}", fd::toString));
             LOG.debug("Writing DB: {} records", fileDataSet::size);
-            metadataDao.write(fileDataSet);
-            LOG.debug("Writing DB done");
+            metadataStore.writePage(fileDataSet, checkpoint);
+            downloadService.downloadListed(fileDataSet);
         });
         syncThread.run();
 
+        metadataStore.whenDurable().join();
+        LOG.debug("Writing DB done");
+
         configDao.write(Config.INITIAL_SYNC, ConfigDao.YES);
     }
 
     private CompletableFuture<Void> runPolling(final ExecutorService pool) {
-        final Runnable pollThread = dropboxService.createPollingThread(fileDataSet ->
-            fileDataSet.forEach(dropboxFileData -> {
+        final Runnable pollThread = dropboxService.createPollingThread(new RemoteMoveDetector(metadataStore,
+            pendingDeleteDao, localFolderService, localStateService, downloadService.getGlobalOperationsTracker(),
+            dropboxFileData -> {
                 LOG.info("DROPBOX {}", dropboxFileData::toString);
                 downloadService.scheduleProcessing(dropboxFileData);
             })
@@ -209,7 +246,7 @@ public class DSyncClient {
         final Runnable watchThread = localFolderService.createFolderWatchingThread(localFolderData -> {
             LOG.info(localFolderData);
             uploadService.scheduleProcessing(localFolderData);
-        });
+        }, localStateService);
         return CompletableFuture.runAsync(watchThread, pool);
     }
 
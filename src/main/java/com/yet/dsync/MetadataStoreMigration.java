@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package com.yet.dsync;
+
+import com.yet.dsync.dao.Database;
+import com.yet.dsync.dao.DatabaseInit;
+import com.yet.dsync.dao.MetadataStore;
+import com.yet.dsync.dao.MetadataStoreFactory;
+import com.yet.dsync.dao.MetadataStoreFactory.Backend;
+import com.yet.dsync.dto.DropboxFileData;
+import com.yet.dsync.exception.DSyncClientException;
+import com.yet.dsync.util.Config;
+import lombok.SneakyThrows;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.lang3.EnumUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Offline tool for copying metadata from one store backend to another.
+ * Should be run while the client is stopped. After the copy the client
+ * is started with {@code -Ddsync.metadata.store} set to the target backend.
+ */
+public final class MetadataStoreMigration {
+
+    private static final Logger LOG = LogManager.getLogger(MetadataStoreMigration.class);
+
+    private static final int BATCH_SIZE = 1000;
+
+    private MetadataStoreMigration() {
+    }
+
+    @SneakyThrows
+    public static void main(final String[] args) {
+        final Options options = createCommandLineOptions();
+        final CommandLineParser parser = new DefaultParser();
+        final CommandLine cmd = parser.parse(options, args);
+
+        if (cmd.hasOption('h') || !cmd.hasOption("to")) {
+            final HelpFormatter formatter = new HelpFormatter();
+            formatter.printHelp(
+                    "java -cp \"lib/*\" " + MetadataStoreMigration.class.getCanonicalName()
+                            + " -to <backend> [options]", options);
+
+        } else {
+            final String dbPath = cmd.getOptionValue("db", getDefaultDbPath());
+            final Backend from = parseBackend(cmd.getOptionValue("from", Backend.SQLITE.name()));
+            final Backend to = parseBackend(cmd.getOptionValue("to"));
+
+            migrate(new File(dbPath).getAbsoluteFile(), from, to);
+        }
+    }
+
+    private static void migrate(final File dbPathFile, final Backend from, final Backend to) {
+        if (from == to) {
+            throw new DSyncClientException("Source and target metadata stores are the same: " + from);
+        }
+        if (!dbPathFile.exists()) {
+            throw new DSyncClientException("Database not found at " + dbPathFile);
+        }
+
+        final String dbDir = dbPathFile.getParent();
+        final String dbName = dbPathFile.getName();
+
+        final DatabaseInit dbInit = new DatabaseInit();
+        final Database database = dbInit.createDatabase(dbDir, dbName);
+        dbInit.migrate(database);
+
+        final MetadataStore target = MetadataStoreFactory.create(to, database, dbDir, dbName);
+
+        if (!target.isEmpty()) {
+            throw new DSyncClientException("Target metadata store " + to + " is not empty");
+        }
+
+        final MetadataStore source = MetadataStoreFactory.create(from, database, dbDir, dbName);
+        final long start = System.currentTimeMillis();
+        final AtomicLong count = new AtomicLong();
+        final List<DropboxFileData> loadedBatch = new ArrayList<>(BATCH_SIZE);
+        final List<DropboxFileData> notLoadedBatch = new ArrayList<>(BATCH_SIZE);
+
+        source.forEachRow((fileData, loaded) -> {
+            final List<DropboxFileData> batch = loaded ? loadedBatch : notLoadedBatch;
+            batch.add(fileData);
+            if (batch.size() == BATCH_SIZE) {
+                copy(target, loadedBatch, notLoadedBatch);
+            }
+            count.incrementAndGet();
+        });
+        copy(target, loadedBatch, notLoadedBatch);
+        target.whenDurable().join();
+        database.close();
+
+        LOG.info("Copied {} metadata entries from {} to {} in {} ms",
+            count::get, () -> from, () -> to, () -> System.currentTimeMillis() - start);
+    }
+
+    private static void copy(final MetadataStore target, final List<DropboxFileData> loadedBatch,
+            final List<DropboxFileData> notLoadedBatch) {
+        target.writeAllLoaded(loadedBatch);
+        target.writeAll(notLoadedBatch);
+        loadedBatch.clear();
+        notLoadedBatch.clear();
+    }
+
+    private static Backend parseBackend(final String value) {
+        final Backend backend = EnumUtils.getEnum(Backend.class, value.trim().toUpperCase(Locale.ENGLISH));
+        if (backend == null) {
+            throw new DSyncClientException("Unknown metadata store: " + value);
+        }
+        return backend;
+    }
+
+    private static String getDefaultDbPath() {
+        final String configDir = Config.getProgramConfigurationDirectory();
+        final File db = new File(configDir + File.separator + Config.DB_NAME);
+        return db.getAbsolutePath();
+    }
+
+    private static Options createCommandLineOptions() {
+        final Options options = new Options();
+        options.addOption("db", "database", true, "Full path to database");
+        options.addOption("from", true, "Metadata store to copy from: SQLITE (default) or LOG");
+        options.addOption("to", true, "Metadata store to copy to: SQLITE or LOG");
+        options.addOption("h", "help", false, "Display this help");
+        return options;
+    }
+
+}
@@ -15,14 +15,10 @@
 package com.yet.dsync.dao;
 
 import com.yet.dsync.util.Config;
-import lombok.SneakyThrows;
 import org.apache.commons.lang3.StringUtils;
 
-import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 
 public class ConfigDao {
 
@@ -38,23 +34,15 @@ public class ConfigDao {
     private static final String INSERT_STATEMENT = "INSERT INTO CONFIG (KEY,VALUE) VALUES (?,?)";
     private static final String UPDATE_STATEMENT = "UPDATE CONFIG SET VALUE = ? WHERE KEY = ?";
 
-    private final PreparedStatement readStatement;
-    private final PreparedStatement insertStatement;
-    private final PreparedStatement updateStatement;
+    private final Database database;
 
-    private final Lock syncLock = new ReentrantLock(true);
-
-    @SneakyThrows
-    public ConfigDao(final Connection connection) {
-        readStatement = connection.prepareStatement(SELECT_STATEMENT);
-        insertStatement = connection.prepareStatement(INSERT_STATEMENT);
-        updateStatement = connection.prepareStatement(UPDATE_STATEMENT);
+    public ConfigDao(final Database database) {
+        this.database = database;
     }
 
-    @SneakyThrows
     public String read(final Config key) {
-        syncLock.lock();
-        try {
+        return database.read(connection -> {
+            final PreparedStatement readStatement = connection.prepare(SELECT_STATEMENT);
             readStatement.setString(1, key.name());
 
             try (ResultSet resultSet = readStatement.executeQuery()) {
@@ -64,33 +52,30 @@ public class ConfigDao {
                     return StringUtils.EMPTY;
                 }
             }
-        } finally {
-            syncLock.unlock();
-        }
+        });
     }
 
-    @SneakyThrows
     public void write(final Config key, final String value) {
-        syncLock.lock();
-        try {
+        database.write(connection -> {
+            final PreparedStatement readStatement = connection.prepare(SELECT_STATEMENT);
             readStatement.setString(1, key.name());
 
             try (ResultSet resultSet = readStatement.executeQuery()) {
                 if (resultSet.next()) {
+                    final PreparedStatement updateStatement = connection.prepare(UPDATE_STATEMENT);
                     updateStatement.setString(1, value);
                     updateStatement.setString(2, key.name());
 
-                    updateStatement.executeUpdate();
+                    return updateStatement.executeUpdate();
                 } else {
+                    final PreparedStatement insertStatement = connection.prepare(INSERT_STATEMENT);
                     insertStatement.setString(1, key.name());
                     insertStatement.setString(2, value);
 
-                    insertStatement.executeUpdate();
+                    return insertStatement.executeUpdate();
                 }
             }
-        } finally {
-            syncLock.unlock();
-        }
+        });
     }
 
 }
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.yet.dsync.dao;
+
+import com.yet.dsync.exception.DSyncClientException;
+import lombok.SneakyThrows;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * SQLite database with one writer connection and a pool of reader
+ * connections. The database is in WAL journal mode, so readers don't block
+ * the writer and each other, and see the last committed state. All writes
+ * go through the single writer connection one at a time.
+ *
+ * Reads of the thread that is writing at the moment go through the writer
+ * connection, so they see its own not committed changes.
+ */
+public class Database {
+
+    private static final long CLOSE_WAIT_MS = 1000;
+
+    private final DatabaseConnection writeConnection;
+    private final ReentrantLock writeLock = new ReentrantLock(true);
+
+    private final BlockingQueue<DatabaseConnection> readConnections;
+    private final int readConnectionCount;
+
+    @SuppressWarnings("PMD.CloseResource")
+    Database(final Connection writeConnection, final List<Connection> readConnections) {
+        this.writeConnection = new DatabaseConnection(writeConnection);
+        this.readConnectionCount = readConnections.size();
+        this.readConnections = new ArrayBlockingQueue<>(readConnectionCount);
+        for (final Connection connection : readConnections) {
+            this.readConnections.add(new DatabaseConnection(connection));
+        }
+    }
+
+    /**
+     * Doing the work with one of reader connections without waiting for
+     * writes.
+     */
+    @SneakyThrows
+    public <T> T read(final Work<T> work) {
+        if (writeLock.isHeldByCurrentThread()) {
+            return work.execute(writeConnection);
+        }
+
+        final DatabaseConnection connection;
+        try {
+            connection = readConnections.take();
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new DSyncClientException(ex);
+        }
+        try {
+            return work.execute(connection);
+        } finally {
+            readConnections.add(connection);
+        }
+    }
+
+    /**
+     * Doing the work with the writer connection. Each statement is committed
+     * separately, unless the work is a part of transaction.
+     */
+    @SneakyThrows
+    public <T> T write(final Work<T> work) {
+        writeLock.lock();
+        try {
+            return work.execute(writeConnection);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Doing the work with the writer connection in one transaction. The
+     * transaction is rolled back if the work fails. Transaction started
+     * inside of another one becomes a part of the outer transaction.
+     */
+    @SneakyThrows
+    @SuppressWarnings("PMD.CloseResource")
+    public <T> T transaction(final Work<T> work) {
+        writeLock.lock();
+        try {
+            final Connection connection = writeConnection.getConnection();
+            if (!connection.getAutoCommit()) {
+                return work.execute(writeConnection);
+            }
+
+            connection.setAutoCommit(false);
+            boolean committed = false;
+            try {
+                final T result = work.execute(writeConnection);
+                connection.commit();
+                committed = true;
+                return result;
+            } finally {
+                /* Any failure, including errors and sneaky checked exceptions, must not be committed */
+                if (!committed) {
+                    connection.rollback();
+                }
+                connection.setAutoCommit(true);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Closing all connections after the current write and reads are done.
+     * Closing of the last connection checkpoints the WAL into the database
+     * file and removes it. Reader that is still busy after
+     * {@value #CLOSE_WAIT_MS} ms is left open.
+     */
+    @SneakyThrows
+    public void close() {
+        writeLock.lock();
+        try {
+            for (int i = 0; i < readConnectionCount; i++) {
+                final DatabaseConnection connection = readConnections.poll(CLOSE_WAIT_MS, TimeUnit.MILLISECONDS);
+                if (connection != null) {
+                    connection.close();
+                }
+            }
+            writeConnection.close();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Work done with the database connection.
+     *
+     * @param <T> type of the result
+     */
+    @FunctionalInterface
+    public interface Work<T> {
+        T execute(DatabaseConnection connection) throws SQLException;
+    }
+
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.yet.dsync.dao;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * JDBC connection together with its prepared statements, so each statement
+ * is prepared once per connection. The statements are owned by the
+ * connection and must not be closed by DAOs. The connection is used by one
+ * thread at a time, which is guaranteed by {@link Database}.
+ */
+public class DatabaseConnection {
+
+    private final Connection connection;
+
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+    DatabaseConnection(final Connection connection) {
+        this.connection = connection;
+    }
+
+    public Connection getConnection() {
+        return connection;
+    }
+
+    /**
+     * Returns prepared statement for the SQL, preparing it on first use.
+     *
+     * @param sql
+     *            SQL of the statement
+     * @return prepared statement
+     * @throws SQLException
+     *             if statement can't be prepared
+     */
+    @SuppressFBWarnings(value = "SQL_PREPARED_STATEMENT_GENERATED_FROM_NONCONSTANT_STRING",
+            justification = "SQL comes from statement constants of DAOs")
+    public PreparedStatement prepare(final String sql) throws SQLException {
+        PreparedStatement statement = statements.get(sql);
+        if (statement == null) {
+            statement = connection.prepareStatement(sql);
+            statements.put(sql, statement);
+        }
+        return statement;
+    }
+
+    /**
+     * Closing prepared statements and the connection.
+     *
+     * @throws SQLException
+     *             if connection can't be closed
+     */
+    @SuppressWarnings("PMD.CloseResource")
+    void close() throws SQLException {
+        for (final PreparedStatement statement : statements.values()) {
+            statement.close();
+        }
+        statements.clear();
+        connection.close();
+    }
+
+}
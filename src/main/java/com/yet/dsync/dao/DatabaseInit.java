@@ -14,31 +14,237 @@
 
 package com.yet.dsync.dao;
 
+import com.yet.dsync.exception.DSyncClientException;
+import com.yet.dsync.util.PropertyUtil;
 import lombok.SneakyThrows;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.sqlite.SQLiteConfig;
 
 import java.io.File;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 public class DatabaseInit {
 
+    private static final Logger LOG = LogManager.getLogger(DatabaseInit.class);
+
     private static final String JDBC_PREFIX = "jdbc:sqlite:";
 
+    private static final String CREATE_SCHEMA_VERSION_STATEMENT = "CREATE TABLE IF NOT EXISTS SCHEMA_VERSION ("
+        + "VERSION  INTEGER  NOT NULL"
+        + ")";
+
+    private static final String SELECT_SCHEMA_VERSION_STATEMENT = "SELECT MAX(VERSION) FROM SCHEMA_VERSION";
+
+    private static final String INSERT_SCHEMA_VERSION_STATEMENT = "INSERT INTO SCHEMA_VERSION (VERSION) VALUES (?)";
+
+    /* Number of connections used for reading in parallel with writes */
+    private static final int READ_CONNECTIONS = PropertyUtil.getInt("dsync.db.readConnections", 4, 1, 32);
+
+    /* NORMAL is durable in WAL mode except for the last transactions on power loss */
+    private static final SQLiteConfig.SynchronousMode SYNCHRONOUS = PropertyUtil.getEnum(
+        "dsync.db.synchronous", SQLiteConfig.SynchronousMode.class, SQLiteConfig.SynchronousMode.NORMAL);
+
+    /* Page cache size of each connection */
+    private static final int CACHE_SIZE_KB = PropertyUtil.getInt("dsync.db.cacheSizeKb", 16 * 1024, 0, 1024 * 1024);
+
+    /* Size of the database file that is read through memory mapping */
+    private static final long MMAP_SIZE = PropertyUtil.getLong("dsync.db.mmapSize", 256L * 1024 * 1024,
+        0, Long.MAX_VALUE);
+
+    private static final int BUSY_TIMEOUT_MS = 10_000;
+
+    /*
+     * Schema migrations in the order of versions, migration at index i
+     * upgrades schema to version i + 1. Only append new migrations here,
+     * never change or reorder the existing ones.
+     */
+    private final List<Migration> migrations = Arrays.asList(
+        this::createBaseTables,
+        this::createLookupIndexes,
+        this::createNotLoadedOrderIndex,
+        this::createPendingDeleteTable,
+        this::addPendingDeleteStoredId
+    );
+
     @SneakyThrows
     public DatabaseInit() {
         Class.forName("org.sqlite.JDBC");
     }
 
+    /**
+     * Opening database in WAL mode with writer connection and pool of reader
+     * connections.
+     */
+    @SneakyThrows
+    public Database createDatabase(final String dbFolder, final String dbName) {
+        final String url = JDBC_PREFIX + dbFolder + File.separator + dbName;
+
+        final SQLiteConfig writeConfig = createConfig();
+        writeConfig.setJournalMode(SQLiteConfig.JournalMode.WAL);
+        final Connection writeConnection = DriverManager.getConnection(url, writeConfig.toProperties());
+
+        final SQLiteConfig readConfig = createConfig();
+        readConfig.setReadOnly(true);
+        final List<Connection> readConnections = new ArrayList<>(READ_CONNECTIONS);
+        for (int i = 0; i < READ_CONNECTIONS; i++) {
+            readConnections.add(DriverManager.getConnection(url, readConfig.toProperties()));
+        }
+
+        return new Database(writeConnection, readConnections);
+    }
+
+    private SQLiteConfig createConfig() {
+        final SQLiteConfig config = new SQLiteConfig();
+        config.setSynchronous(SYNCHRONOUS);
+        config.setCacheSize(-CACHE_SIZE_KB);
+        config.setPragma(SQLiteConfig.Pragma.MMAP_SIZE, Long.toString(MMAP_SIZE));
+        config.setBusyTimeout(BUSY_TIMEOUT_MS);
+        return config;
+    }
+
+    /**
+     * Bringing schema of new or existing database to the latest version.
+     * Every migration that is newer than the version recorded in the
+     * database runs in its own transaction together with recording of its
+     * version, so interrupted upgrade continues from the failed migration on
+     * the next start.
+     */
+    public void migrate(final Database database) {
+        final int currentVersion = database.transaction(connection -> {
+            createSchemaVersionTable(connection.getConnection());
+            return readSchemaVersion(connection.getConnection());
+        });
+
+        if (currentVersion > migrations.size()) {
+            throw new DSyncClientException("Database schema version " + currentVersion
+                + " is newer than supported version " + migrations.size());
+        }
+
+        for (int version = currentVersion + 1; version <= migrations.size(); version++) {
+            final int nextVersion = version;
+            LOG.info("Migrating database schema to version {}", nextVersion);
+            database.transaction(connection -> {
+                migrations.get(nextVersion - 1).apply(connection.getConnection());
+                writeSchemaVersion(connection.getConnection(), nextVersion);
+                return null;
+            });
+        }
+    }
+
+    @SneakyThrows
+    private void createSchemaVersionTable(final Connection connection) {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.executeUpdate(CREATE_SCHEMA_VERSION_STATEMENT);
+        }
+    }
+
+    @SneakyThrows
+    private int readSchemaVersion(final Connection connection) {
+        try (Statement stmt = connection.createStatement();
+             ResultSet resultSet = stmt.executeQuery(SELECT_SCHEMA_VERSION_STATEMENT)) {
+            return resultSet.next() ? resultSet.getInt(1) : 0;
+        }
+    }
+
+    @SneakyThrows
+    private void writeSchemaVersion(final Connection connection, final int version) {
+        try (PreparedStatement stmt = connection.prepareStatement(INSERT_SCHEMA_VERSION_STATEMENT)) {
+            stmt.setInt(1, version);
+            stmt.executeUpdate();
+        }
+    }
+
+    /**
+     * Version 1: tables of all versions before schema versioning was
+     * introduced. Databases created by these versions may lack some of
+     * them, so every table, column and index is checked.
+     */
+    @SneakyThrows
+    private void createBaseTables(final Connection connection) {
+        if (!hasTable(connection, "CONFIG")) {
+            createConfigTable(connection);
+        }
+        if (hasTable(connection, "METADATA")) {
+            if (!hasColumn(connection, "METADATA", "CHASH")) {
+                try (Statement stmt = connection.createStatement()) {
+                    stmt.executeUpdate(MetadataDao.ADD_CONTENT_HASH_STATEMENT);
+                }
+            }
+        } else {
+            createMetadataTable(connection);
+        }
+        createUploadSessionTable(connection);
+        createLocalStateTable(connection);
+        createContentHashIndexes(connection);
+    }
+
+    /**
+     * Version 2: indexes for looking up metadata by path and for finding not
+     * loaded files on start.
+     */
     @SneakyThrows
-    public Connection createConnection(final String dbFolder, final String dbName) {
-        return DriverManager.getConnection(JDBC_PREFIX + dbFolder + File.separator + dbName);
+    private void createLookupIndexes(final Connection connection) {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.executeUpdate(MetadataDao.CREATE_PLOWER_INDEX_STATEMENT);
+            stmt.executeUpdate(MetadataDao.CREATE_NOT_LOADED_INDEX_STATEMENT);
+        }
     }
 
+    /**
+     * Version 3: not loaded entries are read in pages in the order of
+     * processing priority, so the index on not loaded ids is replaced with
+     * one that has this order.
+     */
     @SneakyThrows
-    public void createTables(final Connection connection) {
-        createConfigTable(connection);
-        createMetadataTable(connection);
+    private void createNotLoadedOrderIndex(final Connection connection) {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.executeUpdate(MetadataDao.DROP_NOT_LOADED_INDEX_STATEMENT);
+            stmt.executeUpdate(MetadataDao.CREATE_NOT_LOADED_ORDER_INDEX_STATEMENT);
+        }
+    }
+
+    /**
+     * Version 4: deletes listed from Dropbox are kept until they are applied,
+     * so they are not lost when the cursor is saved before that.
+     */
+    @SneakyThrows
+    private void createPendingDeleteTable(final Connection connection) {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.executeUpdate(PendingDeleteDao.CREATE_TABLE_STATEMENT);
+        }
+    }
+
+    /**
+     * Version 5: pending delete keeps id of the metadata it removes, so the
+     * delete is not applied to the path that was created again.
+     */
+    @SneakyThrows
+    private void addPendingDeleteStoredId(final Connection connection) {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.executeUpdate(PendingDeleteDao.ADD_STORED_ID_STATEMENT);
+        }
+    }
+
+    @SneakyThrows
+    private boolean hasTable(final Connection connection, final String table) {
+        try (ResultSet resultSet = connection.getMetaData().getTables(null, null, table, null)) {
+            return resultSet.next();
+        }
+    }
+
+    @SneakyThrows
+    private boolean hasColumn(final Connection connection, final String table, final String column) {
+        try (ResultSet resultSet = connection.getMetaData().getColumns(null, null, table, column)) {
+            return resultSet.next();
+        }
     }
 
     @SneakyThrows
@@ -55,4 +261,31 @@ public class DatabaseInit {
         }
     }
 
+    @SneakyThrows
+    private void createUploadSessionTable(final Connection connection) {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.executeUpdate(UploadSessionDao.CREATE_TABLE_STATEMENT);
+        }
+    }
+
+    @SneakyThrows
+    private void createLocalStateTable(final Connection connection) {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.executeUpdate(LocalStateDao.CREATE_TABLE_STATEMENT);
+        }
+    }
+
+    @SneakyThrows
+    private void createContentHashIndexes(final Connection connection) {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.executeUpdate(MetadataDao.CREATE_CHASH_INDEX_STATEMENT);
+            stmt.executeUpdate(LocalStateDao.CREATE_CHASH_INDEX_STATEMENT);
+        }
+    }
+
+    @FunctionalInterface
+    private interface Migration {
+        void apply(Connection connection);
+    }
+
 }
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package com.yet.dsync.dao;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.yet.dsync.util.PropertyUtil;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Single writer thread that applies queued database changes in the order
+ * they were submitted, committing them in groups. A group is committed when
+ * it reaches max size, when max time passed since its first change or when a
+ * change is submitted as urgent, because somebody waits for it.
+ *
+ * Each change runs in its own savepoint, so failed change is rolled back
+ * without affecting other changes of the group. Futures of changes complete
+ * after the group is committed.
+ */
+final class GroupCommitWriter {
+
+    private static final Logger LOG = LogManager.getLogger(GroupCommitWriter.class);
+
+    /* Max number of changes committed in one transaction */
+    private static final int GROUP_SIZE = PropertyUtil.getInt("dsync.db.groupCommitSize", 1000, 1, 100_000);
+
+    /* Max time the first change of a group waits for others before commit */
+    private static final long GROUP_MILLIS = PropertyUtil.getLong("dsync.db.groupCommitMillis", 50, 0, 10_000);
+
+    private final Database database;
+
+    private final BlockingQueue<Change<?>> queue = new LinkedBlockingQueue<>();
+
+    GroupCommitWriter(final Database database) {
+        this.database = database;
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("metadata-write-%d").setDaemon(true).build());
+        executor.execute(this::run);
+        executor.shutdown();
+    }
+
+    /**
+     * Queueing the change.
+     *
+     * @param work
+     *            change that uses database methods of DAOs
+     * @param urgent
+     *            commit group with this change without waiting for more
+     *            changes
+     * @return future that completes with result of the work after it is
+     *         committed
+     */
+    <T> CompletableFuture<T> submit(final Supplier<T> work, final boolean urgent) {
+        final Change<T> change = new Change<>(work, urgent);
+        queue.add(change);
+        return change.future;
+    }
+
+    private void run() {
+        final List<Change<?>> group = new ArrayList<>();
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                collectGroup(group);
+                commitGroup(group);
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } finally {
+                group.clear();
+            }
+        }
+    }
+
+    private void collectGroup(final List<Change<?>> group) throws InterruptedException {
+        Change<?> change = queue.take();
+        group.add(change);
+
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(GROUP_MILLIS);
+        while (!change.urgent && group.size() < GROUP_SIZE) {
+            change = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            if (change == null) {
+                return;
+            }
+            group.add(change);
+        }
+    }
+
+    @SuppressWarnings("PMD.AvoidCatchingGenericException")
+    private void commitGroup(final List<Change<?>> group) {
+        try {
+            database.transaction(connection -> {
+                for (final Change<?> change : group) {
+                    change.apply(connection.getConnection());
+                }
+                return null;
+            });
+        } catch (final RuntimeException ex) {
+            LOG.error("Failed to commit group of " + group.size() + " changes", ex);
+            group.forEach(change -> change.future.completeExceptionally(ex));
+            return;
+        }
+        group.forEach(Change::complete);
+        LOG.trace("Committed group of {} changes", group::size);
+    }
+
+    /**
+     * Queued change with its result.
+     *
+     * @param <T> type of the result
+     */
+    private static final class Change<T> {
+        private final Supplier<T> work;
+        private final boolean urgent;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+
+        private T result;
+        private Exception failure;
+
+        Change(final Supplier<T> work, final boolean urgent) {
+            this.work = work;
+            this.urgent = urgent;
+        }
+
+        @SuppressWarnings("PMD.AvoidCatchingGenericException")
+        @SuppressFBWarnings(value = "REC_CATCH_EXCEPTION",
+            justification = "DAO methods throw SQLException without declaring it")
+        void apply(final Connection connection) throws SQLException {
+            final Savepoint savepoint = connection.setSavepoint();
+            try {
+                result = work.get();
+                connection.releaseSavepoint(savepoint);
+            } catch (final Exception ex) {
+                LOG.error("Failed to write change", ex);
+                connection.rollback(savepoint);
+                failure = ex;
+            }
+        }
+
+        void complete() {
+            if (failure == null) {
+                future.complete(result);
+            } else {
+                future.completeExceptionally(failure);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package com.yet.dsync.dao;
+
+import com.yet.dsync.dto.DropboxFileData;
+import com.yet.dsync.exception.DSyncClientException;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Metadata DAO that answers lookups from in-memory index of all rows and
+ * writes changes to the database in background.
+ *
+ * The index is loaded once on creation. Every change is applied to the index
+ * right away and queued for {@link GroupCommitWriter} under one lock, so the
+ * database gets changes in the same order as the index, many of them in one
+ * transaction.
+ * Bulk writes wait until they and everything queued before them are
+ * committed. Queries that are not covered by the index go to the database
+ * and may not see the latest queued changes.
+ */
+public class IndexedMetadataDao extends MetadataDao {
+
+    private static final Logger LOG = LogManager.getLogger(IndexedMetadataDao.class);
+
+    private final MetadataIndex index = new MetadataIndex();
+
+    private final GroupCommitWriter writer;
+
+    /* Keeps order of index changes and their queued writes the same */
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    public IndexedMetadataDao(final Database database) {
+        super(database);
+        this.writer = new GroupCommitWriter(database);
+
+        final long start = System.currentTimeMillis();
+        forEachRow(index::put);
+        LOG.info("Loaded {} metadata entries in {} ms", index::size, () -> System.currentTimeMillis() - start);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return index.size() == 0;
+    }
+
+    @Override
+    public DropboxFileData readById(final String id) {
+        return index.get(id);
+    }
+
+    @Override
+    public DropboxFileData readByLowerPath(final String lowerPath) {
+        return index.getByLowerPath(lowerPath);
+    }
+
+    @Override
+    public WriteOutcome write(final DropboxFileData fileData) {
+        writeLock.lock();
+        try {
+            final boolean changed = index.put(fileData, false);
+            writeBehind(() -> super.write(fileData));
+            return changed ? WriteOutcome.CHANGED : WriteOutcome.UNCHANGED;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Index is updated only with rows that are written, so the lock is held
+     * until they are committed.
+     */
+    @Override
+    public List<WriteOutcome> writeAll(final Collection<DropboxFileData> fileDataCollection) {
+        writeLock.lock();
+        try {
+            final List<WriteOutcome> outcomes = writeInOrder(() -> super.writeAll(fileDataCollection));
+
+            final Iterator<WriteOutcome> outcomeIterator = outcomes.iterator();
+            for (final DropboxFileData fileData : fileDataCollection) {
+                if (outcomeIterator.next() != WriteOutcome.FAILED) {
+                    index.put(fileData, false);
+                }
+            }
+            return outcomes;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Queueing the page without waiting, so pages that are listed back to
+     * back are committed together with their checkpoints in one transaction.
+     */
+    @Override
+    public void writePage(final Collection<DropboxFileData> fileDataCollection, final Runnable checkpoint) {
+        final List<DropboxFileData> fileDataList = new ArrayList<>(fileDataCollection);
+        applyAndWriteBehind(() -> fileDataList.forEach(fileData -> index.put(fileData, false)),
+            () -> super.writePage(fileDataList, checkpoint));
+    }
+
+    @Override
+    public void writeAllLoaded(final Collection<DropboxFileData> fileDataCollection) {
+        final List<DropboxFileData> fileDataList = new ArrayList<>(fileDataCollection);
+        applyAndWriteBehind(() -> fileDataList.forEach(fileData -> index.put(fileData, true)),
+            () -> super.writeAllLoaded(fileDataList));
+    }
+
+    @Override
+    public void writeLoadedFlag(final String id) {
+        applyAndWriteBehind(() -> index.setLoaded(id), () -> super.writeLoadedFlag(id));
+    }
+
+    @Override
+    public void deleteTreesByLowerPath(final Collection<String> pathsLower) {
+        final List<String> pathLowerList = new ArrayList<>(pathsLower);
+        applyAndWriteBehind(() -> pathLowerList.forEach(index::removeTree),
+            () -> super.deleteTreesByLowerPath(pathLowerList));
+    }
+
+    @Override
+    public void moveTreeByLowerPath(final String fromPathLower, final String toPath) {
+        applyAndWriteBehind(() -> index.moveTree(fromPathLower, toPath),
+            () -> super.moveTreeByLowerPath(fromPathLower, toPath));
+    }
+
+    @Override
+    public CompletableFuture<Void> whenDurable() {
+        return writer.submit(() -> null, false);
+    }
+
+    private void applyAndWriteBehind(final Runnable indexChange, final Runnable write) {
+        writeLock.lock();
+        try {
+            indexChange.run();
+            writeBehind(write);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @SuppressFBWarnings(value = "RV_RETURN_VALUE_IGNORED",
+        justification = "Failures are logged by the writer, callers wait with whenDurable if needed")
+    private void writeBehind(final Runnable write) {
+        writer.submit(() -> {
+            write.run();
+            return null;
+        }, false);
+    }
+
+    private <T> T writeInOrder(final Supplier<T> write) {
+        try {
+            return writer.submit(write, true).join();
+        } catch (final CompletionException ex) {
+            throw new DSyncClientException("Failed to write metadata", ex);
+        }
+    }
+
+}
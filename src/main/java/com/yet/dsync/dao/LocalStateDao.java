@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.yet.dsync.dao;
+
+import com.yet.dsync.dto.LocalFileState;
+import com.yet.dsync.util.PathUtil;
+import lombok.SneakyThrows;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+
+public class LocalStateDao {
+
+    static final String CREATE_TABLE_STATEMENT = "CREATE TABLE IF NOT EXISTS LOCAL_STATE ("
+        + "PLOWER   TEXT PRIMARY KEY  NOT NULL,"
+        + "PATH     TEXT              NOT NULL,"
+        + "FKEY     TEXT,"
+        + "SIZE     INTEGER           NOT NULL,"
+        + "MODIFIED INTEGER           NOT NULL,"
+        + "CHASH    TEXT"
+        + ")";
+
+    static final String CREATE_CHASH_INDEX_STATEMENT = "CREATE INDEX IF NOT EXISTS LOCAL_STATE_CHASH"
+        + " ON LOCAL_STATE (CHASH)";
+
+    private static final String SELECT_STATEMENT = "SELECT * FROM LOCAL_STATE WHERE PLOWER = ?";
+
+    private static final String SELECT_BY_CHASH_STATEMENT = "SELECT * FROM LOCAL_STATE WHERE CHASH = ? LIMIT ?";
+
+    private static final String INSERT_OR_REPLACE_STATEMENT = "INSERT OR REPLACE INTO LOCAL_STATE ("
+        + "PLOWER,PATH,FKEY,SIZE,MODIFIED,CHASH) VALUES (?,?,?,?,?,?)";
+
+    private static final String DELETE_STATEMENT = "DELETE FROM LOCAL_STATE WHERE PLOWER = ?";
+
+    private static final String DELETE_TREE_STATEMENT = "DELETE FROM LOCAL_STATE WHERE PLOWER = ?"
+        + " OR (PLOWER >= ? AND PLOWER < ?)";
+
+    private static final String MOVE_TREE_STATEMENT = "UPDATE LOCAL_STATE SET PATH = ? || substr(PATH, ?),"
+        + "PLOWER = ? || substr(PLOWER, ?)"
+        + " WHERE PLOWER = ? OR (PLOWER >= ? AND PLOWER < ?)";
+
+    private static final int COL_PATH_LOWER = 1;
+    private static final int COL_PATH = COL_PATH_LOWER + 1;
+    private static final int COL_FILE_KEY = COL_PATH + 1;
+    private static final int COL_SIZE = COL_FILE_KEY + 1;
+    private static final int COL_MODIFIED = COL_SIZE + 1;
+    private static final int COL_CHASH = COL_MODIFIED + 1;
+
+    private final Database database;
+
+    public LocalStateDao(final Database database) {
+        this.database = database;
+    }
+
+    public LocalFileState read(final String pathLower) {
+        return database.read(connection -> {
+            final PreparedStatement readStatement = connection.prepare(SELECT_STATEMENT);
+            readStatement.setString(1, pathLower);
+
+            try (ResultSet resultSet = readStatement.executeQuery()) {
+                if (resultSet.next()) {
+                    return buildFileState(resultSet);
+                } else {
+                    return null;
+                }
+            }
+        });
+    }
+
+    /**
+     * Reading states of files with the given content hash.
+     *
+     * @param contentHash
+     *            content hash to look for
+     * @param limit
+     *            maximum number of states to read
+     * @return states of files with the content hash
+     */
+    public List<LocalFileState> readByContentHash(final String contentHash, final int limit) {
+        return database.read(connection -> {
+            final PreparedStatement readStatement = connection.prepare(SELECT_BY_CHASH_STATEMENT);
+            readStatement.setString(1, contentHash);
+            readStatement.setInt(2, limit);
+
+            final List<LocalFileState> states = new ArrayList<>();
+            try (ResultSet resultSet = readStatement.executeQuery()) {
+                while (resultSet.next()) {
+                    states.add(buildFileState(resultSet));
+                }
+            }
+            return states;
+        });
+    }
+
+    @SneakyThrows
+    private LocalFileState buildFileState(final ResultSet resultSet) {
+        return LocalFileState.builder()
+            .pathLower(resultSet.getString(COL_PATH_LOWER))
+            .pathDisplay(resultSet.getString(COL_PATH))
+            .fileKey(resultSet.getString(COL_FILE_KEY))
+            .size(resultSet.getLong(COL_SIZE))
+            .lastModified(resultSet.getLong(COL_MODIFIED))
+            .contentHash(resultSet.getString(COL_CHASH))
+            .build();
+    }
+
+    public void write(final LocalFileState fileState) {
+        database.write(connection -> {
+            final PreparedStatement writeStatement = connection.prepare(INSERT_OR_REPLACE_STATEMENT);
+            writeStatement.setString(COL_PATH_LOWER, fileState.getPathLower());
+            writeStatement.setString(COL_PATH, fileState.getPathDisplay());
+            setNullableString(writeStatement, COL_FILE_KEY, fileState.getFileKey());
+            writeStatement.setLong(COL_SIZE, fileState.getSize());
+            writeStatement.setLong(COL_MODIFIED, fileState.getLastModified());
+            setNullableString(writeStatement, COL_CHASH, fileState.getContentHash());
+
+            return writeStatement.executeUpdate();
+        });
+    }
+
+    public void delete(final String pathLower) {
+        database.write(connection -> {
+            final PreparedStatement deleteStatement = connection.prepare(DELETE_STATEMENT);
+            deleteStatement.setString(1, pathLower);
+
+            return deleteStatement.executeUpdate();
+        });
+    }
+
+    /**
+     * Deleting each path together with everything under it in one
+     * transaction.
+     */
+    public void deleteTrees(final Collection<String> pathsLower) {
+        database.transaction(connection -> {
+            final PreparedStatement deleteTreeStatement = connection.prepare(DELETE_TREE_STATEMENT);
+            int deleted = 0;
+            for (final String pathLower : pathsLower) {
+                deleteTreeStatement.setString(1, pathLower);
+                deleteTreeStatement.setString(2, PathUtil.subtreeLowerBound(pathLower));
+                deleteTreeStatement.setString(3, PathUtil.subtreeUpperBound(pathLower));
+                deleted += deleteTreeStatement.executeUpdate();
+            }
+            return deleted;
+        });
+    }
+
+    /**
+     * Moving the path together with everything under it by rewriting the
+     * path prefix in one statement.
+     *
+     * @param fromPathLower
+     *            previous lower case path
+     * @param toPath
+     *            new path
+     */
+    public void moveTree(final String fromPathLower, final String toPath) {
+        database.write(connection -> {
+            final PreparedStatement moveTreeStatement = connection.prepare(MOVE_TREE_STATEMENT);
+            final int suffixStart = fromPathLower.length() + 1;
+            moveTreeStatement.setString(1, toPath);
+            moveTreeStatement.setInt(2, suffixStart);
+            moveTreeStatement.setString(3, toPath.toLowerCase(Locale.getDefault()));
+            moveTreeStatement.setInt(4, suffixStart);
+            moveTreeStatement.setString(5, fromPathLower);
+            moveTreeStatement.setString(6, PathUtil.subtreeLowerBound(fromPathLower));
+            moveTreeStatement.setString(7, PathUtil.subtreeUpperBound(fromPathLower));
+
+            return moveTreeStatement.executeUpdate();
+        });
+    }
+
+    private static void setNullableString(final PreparedStatement statement, final int column, final String value)
+            throws SQLException {
+        if (value == null) {
+            statement.setNull(column, Types.VARCHAR);
+        } else {
+            statement.setString(column, value);
+        }
+    }
+
+}
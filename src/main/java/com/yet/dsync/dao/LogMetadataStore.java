@@ -0,0 +1,356 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package com.yet.dsync.dao;
+
+import com.yet.dsync.dto.DropboxFileData;
+import com.yet.dsync.exception.DSyncClientException;
+import com.yet.dsync.util.PropertyUtil;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+/**
+ * Metadata store that keeps all rows in memory and persists changes to an
+ * append-only {@link MetadataLog}. On open the log is replayed into
+ * {@link MetadataIndex} and rewritten if it has many more records than rows.
+ *
+ * Not loaded rows and content hashes are tracked in secondary sets that are
+ * only added to. Their entries are checked against the index on read, and
+ * stale ones are dropped then.
+ *
+ * Page checkpoints run after the page records are forced to disk, so the
+ * checkpoint is never saved without the rows, but the page may be listed
+ * again after crash. Rows are written idempotently, so it doesn't matter.
+ */
+public class LogMetadataStore implements MetadataStore {
+
+    private static final Logger LOG = LogManager.getLogger(LogMetadataStore.class);
+
+    /* Log is rewritten on open when it has this many times more records than rows */
+    private static final int REWRITE_RATIO = PropertyUtil.getInt("dsync.logstore.rewriteRatio", 2, 1, 100);
+
+    private static final int REWRITE_MIN_RECORDS = 10_000;
+
+    private static final Comparator<NotLoadedKey> NOT_LOADED_ORDER = Comparator
+        .comparingLong(NotLoadedKey::getSizeKey)
+        .thenComparing(NotLoadedKey::getId);
+
+    private final MetadataIndex index = new MetadataIndex();
+
+    private final MetadataLog log;
+
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    private final NavigableSet<NotLoadedKey> notLoaded = new TreeSet<>(NOT_LOADED_ORDER);
+
+    private final Map<String, Set<String>> idsByContentHash = new HashMap<>();
+
+    public LogMetadataStore(final Path logFile) {
+        this.log = new MetadataLog(logFile);
+
+        try {
+            final long start = System.currentTimeMillis();
+            log.open(new Replay());
+            if (log.getRecordCount() > REWRITE_MIN_RECORDS
+                    && log.getRecordCount() > (long) REWRITE_RATIO * index.size()) {
+                LOG.info("Rewriting metadata log of {} records", log::getRecordCount);
+                log.rewrite(index::forEach);
+            }
+            LOG.info("Loaded {} metadata entries in {} ms", index::size, () -> System.currentTimeMillis() - start);
+        } catch (final IOException ex) {
+            throw new DSyncClientException("Failed to open metadata log " + logFile, ex);
+        }
+    }
+
+    @Override
+    public DropboxFileData readById(final String id) {
+        return index.get(id);
+    }
+
+    @Override
+    public DropboxFileData readByLowerPath(final String lowerPath) {
+        return index.getByLowerPath(lowerPath);
+    }
+
+    @Override
+    public Collection<DropboxFileData> readLoadedByContentHash(final String contentHash, final int limit) {
+        final List<DropboxFileData> result = new ArrayList<>();
+        writeLock.lock();
+        try {
+            final Set<String> ids = idsByContentHash.getOrDefault(contentHash, new HashSet<>());
+            final Iterator<String> iterator = ids.iterator();
+            while (iterator.hasNext() && result.size() < limit) {
+                final String id = iterator.next();
+                final DropboxFileData fileData = index.get(id);
+                if (fileData == null || !contentHash.equals(fileData.getContentHash())) {
+                    iterator.remove();
+                } else if (index.isLoaded(id)) {
+                    result.add(fileData);
+                }
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        return result;
+    }
+
+    @Override
+    public Collection<DropboxFileData> readNotLoadedPage(final DropboxFileData after, final int limit) {
+        final List<DropboxFileData> result = new ArrayList<>();
+        writeLock.lock();
+        try {
+            final Iterator<NotLoadedKey> iterator = after == null ? notLoaded.iterator()
+                : notLoaded.tailSet(new NotLoadedKey(after), false).iterator();
+            while (iterator.hasNext() && result.size() < limit) {
+                final NotLoadedKey key = iterator.next();
+                final DropboxFileData fileData = index.get(key.getId());
+                if (fileData == null || index.isLoaded(key.getId()) || !key.equals(new NotLoadedKey(fileData))) {
+                    iterator.remove();
+                } else {
+                    result.add(fileData);
+                }
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        return result;
+    }
+
+    @Override
+    public List<String> readOrphanLowerPaths(final String after, final int limit) {
+        final List<String> result = new ArrayList<>();
+        for (final String pathLower : index.orphanLowerPaths()) {
+            if (result.size() == limit) {
+                break;
+            }
+            if (pathLower.compareTo(after) > 0) {
+                result.add(pathLower);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return index.size() == 0;
+    }
+
+    @Override
+    public void forEachRow(final BiConsumer<DropboxFileData, Boolean> consumer) {
+        index.forEach(consumer);
+    }
+
+    @Override
+    public WriteOutcome write(final DropboxFileData fileData) {
+        writeLock.lock();
+        try {
+            return put(fileData, false) ? WriteOutcome.CHANGED : WriteOutcome.UNCHANGED;
+        } catch (final IOException ex) {
+            throw new DSyncClientException(ex);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public List<WriteOutcome> writeAll(final Collection<DropboxFileData> fileDataCollection) {
+        final List<WriteOutcome> outcomes = new ArrayList<>(fileDataCollection.size());
+        for (final DropboxFileData fileData : fileDataCollection) {
+            outcomes.add(write(fileData));
+        }
+        return outcomes;
+    }
+
+    @Override
+    public void writeAllLoaded(final Collection<DropboxFileData> fileDataCollection) {
+        writeLock.lock();
+        try {
+            for (final DropboxFileData fileData : fileDataCollection) {
+                put(fileData, true);
+            }
+        } catch (final IOException ex) {
+            throw new DSyncClientException(ex);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void writePage(final Collection<DropboxFileData> fileDataCollection, final Runnable checkpoint) {
+        writeAll(fileDataCollection);
+        whenDurable().join();
+        checkpoint.run();
+    }
+
+    @Override
+    public void writeLoadedFlag(final String id) {
+        writeLock.lock();
+        try {
+            index.setLoaded(id);
+            log.appendLoaded(id);
+        } catch (final IOException ex) {
+            throw new DSyncClientException(ex);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void deleteTreeByLowerPath(final String pathLower) {
+        writeLock.lock();
+        try {
+            index.removeTree(pathLower);
+            log.appendDeleteTree(pathLower);
+        } catch (final IOException ex) {
+            throw new DSyncClientException(ex);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void deleteTreesByLowerPath(final Collection<String> pathsLower) {
+        pathsLower.forEach(this::deleteTreeByLowerPath);
+    }
+
+    @Override
+    public void moveTreeByLowerPath(final String fromPathLower, final String toPath) {
+        writeLock.lock();
+        try {
+            index.moveTree(fromPathLower, toPath);
+            log.appendMoveTree(fromPathLower, toPath);
+        } catch (final IOException ex) {
+            throw new DSyncClientException(ex);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    @SuppressFBWarnings(value = "NP_NONNULL_PARAM_VIOLATION", justification = "Void future completes with null")
+    public CompletableFuture<Void> whenDurable() {
+        writeLock.lock();
+        try {
+            log.force();
+            return CompletableFuture.completedFuture(null);
+        } catch (final IOException ex) {
+            final CompletableFuture<Void> future = new CompletableFuture<>();
+            future.completeExceptionally(ex);
+            return future;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private boolean put(final DropboxFileData fileData, final boolean loaded) throws IOException {
+        final boolean wasLoaded = index.isLoaded(fileData.getId());
+        final boolean changed = index.put(fileData, loaded);
+        if (changed || loaded && !wasLoaded) {
+            log.appendPut(fileData, loaded);
+            track(fileData);
+        }
+        return changed;
+    }
+
+    private void track(final DropboxFileData fileData) {
+        if (!index.isLoaded(fileData.getId())) {
+            notLoaded.add(new NotLoadedKey(fileData));
+        }
+        if (fileData.getContentHash() != null) {
+            idsByContentHash.computeIfAbsent(fileData.getContentHash(), hash -> new HashSet<>())
+                .add(fileData.getId());
+        }
+    }
+
+    /**
+     * Applying replayed records the same way as original changes.
+     */
+    private final class Replay implements MetadataLog.Handler {
+        @Override
+        public void put(final DropboxFileData fileData, final boolean loaded) {
+            index.put(fileData, loaded);
+            track(fileData);
+        }
+
+        @Override
+        public void loaded(final String id) {
+            index.setLoaded(id);
+        }
+
+        @Override
+        public void deleteTree(final String pathLower) {
+            index.removeTree(pathLower);
+        }
+
+        @Override
+        public void moveTree(final String fromPathLower, final String toPath) {
+            index.moveTree(fromPathLower, toPath);
+        }
+    }
+
+    /**
+     * Position of not loaded row in the order of processing priority:
+     * folders first, then files from small to big.
+     */
+    private static final class NotLoadedKey {
+        private final long sizeKey;
+        private final String id;
+
+        NotLoadedKey(final DropboxFileData fileData) {
+            this.sizeKey = fileData.getSize() == null ? -1 : fileData.getSize();
+            this.id = fileData.getId();
+        }
+
+        long getSizeKey() {
+            return sizeKey;
+        }
+
+        String getId() {
+            return id;
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            if (!(other instanceof NotLoadedKey)) {
+                return false;
+            }
+            final NotLoadedKey key = (NotLoadedKey) other;
+            return sizeKey == key.sizeKey && id.equals(key.id);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(sizeKey, id);
+        }
+    }
+
+}
@@ -15,11 +15,15 @@
 package com.yet.dsync.dao;
 
 import com.yet.dsync.dto.DropboxFileData;
-import com.yet.dsync.exception.DSyncClientException;
+import com.yet.dsync.util.PathUtil;
+import com.yet.dsync.util.PropertyUtil;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import lombok.SneakyThrows;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 import java.math.BigDecimal;
-import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -27,13 +31,17 @@ import java.sql.Types;
 import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.LinkedList;
-import java.util.Set;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
 
-public class MetadataDao {
+public class MetadataDao implements MetadataStore {
 
     static final String CREATE_TABLE_STATEMENT = "CREATE TABLE METADATA ("
         + "ID       TEXT PRIMARY KEY  NOT NULL,"
@@ -43,29 +51,94 @@ public class MetadataDao {
         + "REV      TEXT,"
         + "SIZE     INTEGER,"
         + "SRVDATE  INTEGER,"
-        + "CLIDATE  INTEGER"
+        + "CLIDATE  INTEGER,"
+        + "CHASH    TEXT"
         + ")";
 
+    static final String ADD_CONTENT_HASH_STATEMENT = "ALTER TABLE METADATA ADD COLUMN CHASH TEXT";
+
+    static final String CREATE_CHASH_INDEX_STATEMENT = "CREATE INDEX IF NOT EXISTS METADATA_CHASH"
+        + " ON METADATA (CHASH)";
+
+    static final String CREATE_PLOWER_INDEX_STATEMENT = "CREATE INDEX IF NOT EXISTS METADATA_PLOWER"
+        + " ON METADATA (PLOWER)";
+
+    /* Partial index matches only queries that have literal LOADED = 0 condition */
+    static final String CREATE_NOT_LOADED_INDEX_STATEMENT = "CREATE INDEX IF NOT EXISTS METADATA_NOT_LOADED"
+        + " ON METADATA (ID) WHERE LOADED = 0";
+
+    static final String DROP_NOT_LOADED_INDEX_STATEMENT = "DROP INDEX IF EXISTS METADATA_NOT_LOADED";
+
+    /* Folders have no size, so they come before files in the order of the index */
+    static final String CREATE_NOT_LOADED_ORDER_INDEX_STATEMENT = "CREATE INDEX IF NOT EXISTS"
+        + " METADATA_NOT_LOADED_ORDER ON METADATA (COALESCE(SIZE, -1), ID) WHERE LOADED = 0";
+
+    private static final Logger LOG = LogManager.getLogger(MetadataDao.class);
+
+    private static final String SELECT_LOADED_BY_CHASH_STATEMENT = "SELECT * FROM METADATA"
+        + " WHERE CHASH = ? AND LOADED = 1 LIMIT ?";
+
     private static final String SELECT_BY_ID_STATEMENT = "SELECT * FROM METADATA WHERE ID = ?";
 
-    private static final String SELECT_NOT_LOADED_STATEMENT = "SELECT * FROM METADATA WHERE LOADED = 0";
+    /*
+     * Rows with the same size key after the given id, then rows with bigger
+     * size key. Both parts seek in the index, while single row value
+     * comparison would scan it from the start for every page.
+     */
+    private static final String SELECT_NOT_LOADED_PAGE_STATEMENT = "SELECT * FROM ("
+        + "SELECT *, COALESCE(SIZE, -1) AS SKEY FROM METADATA WHERE LOADED = 0"
+        + " AND COALESCE(SIZE, -1) = ? AND ID > ? ORDER BY ID LIMIT ?"
+        + ") UNION ALL SELECT * FROM ("
+        + "SELECT *, COALESCE(SIZE, -1) AS SKEY FROM METADATA WHERE LOADED = 0"
+        + " AND COALESCE(SIZE, -1) > ? ORDER BY COALESCE(SIZE, -1), ID LIMIT ?"
+        + ") ORDER BY SKEY, ID LIMIT ?";
+
+    /* Key that is less than the key of any row */
+    private static final long FIRST_PAGE_SIZE_KEY = -2;
+
+    private static final String SELECT_ALL_STATEMENT = "SELECT * FROM METADATA";
+
+    private static final String SELECT_ANY_STATEMENT = "SELECT 1 FROM METADATA LIMIT 1";
 
     private static final String SELECT_BY_PLOWER_STATEMENT = "SELECT * FROM METADATA WHERE PLOWER = ?";
 
-    private static final String INSERT_STATEMENT = "INSERT INTO METADATA ("
-        + "ID,PATH,PLOWER,LOADED,REV,SIZE,SRVDATE,CLIDATE) VALUES (?,?,?,?,?,?,?,?)";
+    /* Loaded flag is reset when revision changes, so the new content is downloaded even after restart */
+    private static final String UPSERT_STATEMENT = "INSERT INTO METADATA ("
+        + "ID,PATH,PLOWER,LOADED,REV,SIZE,SRVDATE,CLIDATE,CHASH) VALUES (?,?,?,?,?,?,?,?,?)"
+        + " ON CONFLICT (ID) DO UPDATE SET"
+        + " PATH = excluded.PATH,"
+        + " PLOWER = excluded.PLOWER,"
+        + " LOADED = CASE WHEN REV IS excluded.REV THEN LOADED ELSE 0 END,"
+        + " REV = excluded.REV,"
+        + " SIZE = excluded.SIZE,"
+        + " SRVDATE = excluded.SRVDATE,"
+        + " CLIDATE = excluded.CLIDATE,"
+        + " CHASH = excluded.CHASH"
+        + " WHERE PATH IS NOT excluded.PATH"
+        + " OR REV IS NOT excluded.REV"
+        + " OR SIZE IS NOT excluded.SIZE"
+        + " OR SRVDATE IS NOT excluded.SRVDATE"
+        + " OR CLIDATE IS NOT excluded.CLIDATE"
+        + " OR CHASH IS NOT excluded.CHASH";
 
     private static final String UPDATE_LOADED_STATEMENT = "UPDATE METADATA SET LOADED = ? WHERE ID = ?";
 
-    private static final String UPDATE_FIELDS_STATEMENT = "UPDATE METADATA SET PATH = ?,"
-        + "PLOWER = ?,"
-        + "REV = ?,"
-        + "SIZE = ?,"
-        + "SRVDATE = ?,"
-        + "CLIDATE = ?"
-        + " WHERE ID = ?";
+    /*
+     * Parent path is the path without the last segment: rtrim with all
+     * characters except separator strips the last segment.
+     */
+    private static final String SELECT_ORPHANS_STATEMENT = "SELECT m.PLOWER FROM METADATA m"
+        + " WHERE m.PLOWER > ? AND instr(substr(m.PLOWER, 2), '/') > 0"
+        + " AND NOT EXISTS (SELECT 1 FROM METADATA p"
+        + " WHERE p.PLOWER = rtrim(rtrim(m.PLOWER, replace(m.PLOWER, '/', '')), '/'))"
+        + " ORDER BY m.PLOWER LIMIT ?";
 
-    private static final String DELETE_BY_PATH_STATEMENT = "DELETE FROM METADATA WHERE PLOWER = ?";
+    private static final String DELETE_TREE_STATEMENT = "DELETE FROM METADATA WHERE PLOWER = ?"
+        + " OR (PLOWER >= ? AND PLOWER < ?)";
+
+    private static final String MOVE_TREE_STATEMENT = "UPDATE METADATA SET PATH = ? || substr(PATH, ?),"
+        + "PLOWER = ? || substr(PLOWER, ?)"
+        + " WHERE PLOWER = ? OR (PLOWER >= ? AND PLOWER < ?)";
 
     private static final int COL_ID = 1;
     private static final int COL_PATH = COL_ID + 1;
@@ -75,54 +148,90 @@ public class MetadataDao {
     private static final int COL_SIZE = COL_REV + 1;
     private static final int COL_SRVDATE = COL_SIZE + 1;
     private static final int COL_CLIDATE = COL_SRVDATE + 1;
+    private static final int COL_CHASH = COL_CLIDATE + 1;
 
-    private static final int UPD_PARAM_PATH = 1;
-    private static final int UPD_PARAM_PATH_LOWER = UPD_PARAM_PATH + 1;
-    private static final int UPD_PARAM_REV = UPD_PARAM_PATH_LOWER + 1;
-    private static final int UPD_PARAM_SIZE = UPD_PARAM_REV + 1;
-    private static final int UPD_PARAM_SRVDATE = UPD_PARAM_SIZE + 1;
-    private static final int UPD_PARAM_CLIDATE = UPD_PARAM_SRVDATE + 1;
-    private static final int UPD_PARAM_ID = UPD_PARAM_CLIDATE + 1;
+    /* Number of rows written in one transaction by bulk write */
+    private static final int WRITE_BATCH_SIZE = PropertyUtil.getInt("dsync.db.writeBatchSize", 5000, 1, 1_000_000);
 
-    private final PreparedStatement readByIdStatement;
-    private final PreparedStatement readNotLoadedStatement;
-    private final PreparedStatement readByPLowerStatement;
-    private final PreparedStatement insertStatement;
-    private final PreparedStatement updateLoadedStatement;
-    private final PreparedStatement updateFieldsStatement;
-    private final PreparedStatement deleteByPathStatement;
+    private final Database database;
 
-    private final Lock syncLock = new ReentrantLock(true);
+    public MetadataDao(final Database database) {
+        this.database = database;
+    }
 
-    @SneakyThrows
-    public MetadataDao(final Connection connection) {
-        readByIdStatement = connection.prepareStatement(SELECT_BY_ID_STATEMENT);
-        readNotLoadedStatement = connection.prepareStatement(SELECT_NOT_LOADED_STATEMENT);
-        readByPLowerStatement = connection.prepareStatement(SELECT_BY_PLOWER_STATEMENT);
-        insertStatement = connection.prepareStatement(INSERT_STATEMENT);
-        updateLoadedStatement = connection.prepareStatement(UPDATE_LOADED_STATEMENT);
-        updateFieldsStatement = connection.prepareStatement(UPDATE_FIELDS_STATEMENT);
-        deleteByPathStatement = connection.prepareStatement(DELETE_BY_PATH_STATEMENT);
+    @Override
+    public DropboxFileData readById(final String id) {
+        return database.read(connection -> readOne(connection.prepare(SELECT_BY_ID_STATEMENT), id));
     }
 
-    @SneakyThrows
+    @Override
     public DropboxFileData readByLowerPath(final String lowerPath) {
-        syncLock.lock();
-        try {
-            readByPLowerStatement.setString(COL_ID, lowerPath);
+        return database.read(connection -> readOne(connection.prepare(SELECT_BY_PLOWER_STATEMENT), lowerPath));
+    }
 
-            try (ResultSet resultSet = readByPLowerStatement.executeQuery()) {
-                if (resultSet.next()) {
-                    return buildFileData(resultSet);
-                } else {
-                    return null;
-                }
+    private DropboxFileData readOne(final PreparedStatement statement, final String key) throws SQLException {
+        statement.setString(1, key);
+
+        try (ResultSet resultSet = statement.executeQuery()) {
+            if (resultSet.next()) {
+                return buildFileData(resultSet);
+            } else {
+                return null;
             }
-        } finally {
-            syncLock.unlock();
         }
     }
 
+    /**
+     * Reading loaded files with the given content hash.
+     */
+    @Override
+    public Collection<DropboxFileData> readLoadedByContentHash(final String contentHash, final int limit) {
+        return database.read(connection -> {
+            final PreparedStatement statement = connection.prepare(SELECT_LOADED_BY_CHASH_STATEMENT);
+            statement.setString(1, contentHash);
+            statement.setInt(2, limit);
+
+            return readAll(statement);
+        });
+    }
+
+    private Collection<DropboxFileData> readAll(final PreparedStatement statement) throws SQLException {
+        try (ResultSet resultSet = statement.executeQuery()) {
+            final Collection<DropboxFileData> allFileData = new LinkedList<>();
+
+            while (resultSet.next()) {
+                allFileData.add(buildFileData(resultSet));
+            }
+
+            return allFileData;
+        }
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return database.read(connection -> {
+            try (ResultSet resultSet = connection.prepare(SELECT_ANY_STATEMENT).executeQuery()) {
+                return !resultSet.next();
+            }
+        });
+    }
+
+    /**
+     * Passing every row with its loaded flag to the consumer without holding
+     * all rows in memory.
+     */
+    @Override
+    public void forEachRow(final BiConsumer<DropboxFileData, Boolean> consumer) {
+        database.read(connection -> {
+            try (ResultSet resultSet = connection.prepare(SELECT_ALL_STATEMENT).executeQuery()) {
+                while (resultSet.next()) {
+                    consumer.accept(buildFileData(resultSet), resultSet.getBoolean(COL_LOADED));
+                }
+            }
+            return null;
+        });
+    }
+
     @SneakyThrows
     private DropboxFileData buildFileData(final ResultSet resultSet) {
         final BigDecimal size = resultSet.getBigDecimal(COL_SIZE);
@@ -134,113 +243,244 @@ public class MetadataDao {
             .size(size == null ? null : size.longValue())
             .serverModified(longToDateTime(resultSet.getBigDecimal(COL_SRVDATE)))
             .clientModified(longToDateTime(resultSet.getBigDecimal(COL_SRVDATE)))
+            .contentHash(resultSet.getString(COL_CHASH))
             .build();
     }
 
-    @SneakyThrows
-    public void write(final DropboxFileData fileData) {
-        syncLock.lock();
-        try {
-            readByIdStatement.setString(COL_ID, fileData.getId());
-
-            try (ResultSet resultSet = readByIdStatement.executeQuery()) {
-                if (resultSet.next()) {
-                    updateFieldsStatement.setString(UPD_PARAM_PATH, fileData.getPathDisplay());
-                    updateFieldsStatement.setString(UPD_PARAM_PATH_LOWER, fileData.getPathLower());
-                    setStatementParams(updateFieldsStatement, UPD_PARAM_REV,
-                        fileData.getRev(), Types.VARCHAR);
-                    setStatementParams(updateFieldsStatement, UPD_PARAM_SIZE,
-                        fileData.getSize(), Types.BIGINT);
-                    setStatementParams(updateFieldsStatement, UPD_PARAM_SRVDATE,
-                        dateTimeToLong(fileData.getServerModified()), Types.BIGINT);
-                    setStatementParams(updateFieldsStatement, UPD_PARAM_CLIDATE,
-                        dateTimeToLong(fileData.getClientModified()), Types.BIGINT);
-
-                    updateFieldsStatement.setString(UPD_PARAM_ID, fileData.getId());
-
-                } else {
-                    fillInsertStatement(fileData);
-
-                    insertStatement.executeUpdate();
-                }
-            }
-        } finally {
-            syncLock.unlock();
-        }
+    @Override
+    public WriteOutcome write(final DropboxFileData fileData) {
+        return database.write(connection -> writeRow(connection, fileData));
     }
 
-    @SneakyThrows
-    private void fillInsertStatement(final DropboxFileData fileData) {
-        insertStatement.setString(COL_ID, fileData.getId());
-        insertStatement.setString(COL_PATH, fileData.getPathDisplay());
-        insertStatement.setString(COL_PATH_LOWER, fileData.getPathLower());
-        insertStatement.setBoolean(COL_LOADED, false);
-        setStatementParams(insertStatement, COL_REV, fileData.getRev(), Types.VARCHAR);
-        setStatementParams(insertStatement, COL_SIZE, fileData.getSize(), Types.BIGINT);
-        setStatementParams(insertStatement, COL_SRVDATE,
-            dateTimeToLong(fileData.getServerModified()), Types.BIGINT);
-        setStatementParams(insertStatement, COL_CLIDATE,
-            dateTimeToLong(fileData.getClientModified()), Types.BIGINT);
+    /**
+     * Inserting new rows and updating existing ones in transactions of
+     * 5000 rows by default (dsync.db.writeBatchSize). Failure of one row
+     * doesn't fail others.
+     *
+     * @param fileDataCollection
+     *            rows to write
+     * @return outcome of each row in the order of the collection
+     */
+    @Override
+    public List<WriteOutcome> writeAll(final Collection<DropboxFileData> fileDataCollection) {
+        final List<WriteOutcome> outcomes = new ArrayList<>(fileDataCollection.size());
+        final Iterator<DropboxFileData> iterator = fileDataCollection.iterator();
+        while (iterator.hasNext()) {
+            database.transaction(connection -> {
+                for (int i = 0; i < WRITE_BATCH_SIZE && iterator.hasNext(); i++) {
+                    outcomes.add(tryWriteRow(connection, iterator.next()));
+                }
+                return null;
+            });
+        }
+        return outcomes;
     }
 
-    @SneakyThrows
-    public void write(final Set<DropboxFileData> fileDataSet) {
-        syncLock.lock();
+    private WriteOutcome tryWriteRow(final DatabaseConnection connection, final DropboxFileData fileData) {
         try {
-            fileDataSet.forEach(fileData -> {
+            return writeRow(connection, fileData);
+        } catch (final SQLException ex) {
+            LOG.error("Failed to write metadata of " + fileData.getPathDisplay(), ex);
+            return WriteOutcome.FAILED;
+        }
+    }
 
-                try {
-                    fillInsertStatement(fileData);
-                    insertStatement.addBatch();
-                } catch (final SQLException ex) {
-                    throw new DSyncClientException(ex);
-                }
+    /**
+     * Writing all file data and setting loaded flag for each of them in one
+     * transaction.
+     */
+    @Override
+    public void writeAllLoaded(final Collection<DropboxFileData> fileDataCollection) {
+        database.transaction(connection -> {
+            for (final DropboxFileData fileData : fileDataCollection) {
+                writeRow(connection, fileData);
+                updateLoadedFlag(connection, fileData.getId());
+            }
+            return null;
+        });
+    }
 
-            });
-            insertStatement.executeBatch();
-        } finally {
-            syncLock.unlock();
-        }
+    /**
+     * Writing rows of one listed page together with the checkpoint of the
+     * listing in one transaction, so after crash either both of them are
+     * saved or the page is listed again. Rows that fail to be written are
+     * logged and skipped, as in {@link #writeAll(Collection)}.
+     *
+     * @param fileDataCollection
+     *            rows of the page
+     * @param checkpoint
+     *            database write that saves position of the listing
+     */
+    @Override
+    public void writePage(final Collection<DropboxFileData> fileDataCollection, final Runnable checkpoint) {
+        database.transaction(connection -> {
+            for (final DropboxFileData fileData : fileDataCollection) {
+                tryWriteRow(connection, fileData);
+            }
+            checkpoint.run();
+            return null;
+        });
     }
 
-    @SneakyThrows
-    public Collection<DropboxFileData> readAllNotLoaded() {
-        try (ResultSet resultSet = readNotLoadedStatement.executeQuery()) {
+    @SuppressWarnings("PMD.CloseResource")
+    private WriteOutcome writeRow(final DatabaseConnection connection, final DropboxFileData fileData)
+            throws SQLException {
+        final PreparedStatement upsertStatement = connection.prepare(UPSERT_STATEMENT);
+        upsertStatement.setString(COL_ID, fileData.getId());
+        upsertStatement.setString(COL_PATH, fileData.getPathDisplay());
+        upsertStatement.setString(COL_PATH_LOWER, fileData.getPathLower());
+        upsertStatement.setBoolean(COL_LOADED, false);
+        setStatementParams(upsertStatement, COL_REV, fileData.getRev(), Types.VARCHAR);
+        setStatementParams(upsertStatement, COL_SIZE, fileData.getSize(), Types.BIGINT);
+        setStatementParams(upsertStatement, COL_SRVDATE,
+            dateTimeToLong(fileData.getServerModified()), Types.BIGINT);
+        setStatementParams(upsertStatement, COL_CLIDATE,
+            dateTimeToLong(fileData.getClientModified()), Types.BIGINT);
+        setStatementParams(upsertStatement, COL_CHASH, fileData.getContentHash(), Types.VARCHAR);
 
-            final Collection<DropboxFileData> allFileData = new LinkedList<>();
+        return upsertStatement.executeUpdate() > 0 ? WriteOutcome.CHANGED : WriteOutcome.UNCHANGED;
+    }
 
-            while (resultSet.next()) {
-                final DropboxFileData fileData = buildFileData(resultSet);
-                allFileData.add(fileData);
+    /**
+     * Reading one page of not loaded entries in the order of processing
+     * priority: folders first, then files from small to big. Pages are
+     * selected by the key of the last entry, so entries that became loaded
+     * meanwhile don't shift the next page.
+     *
+     * @param after
+     *            last entry of the previous page or <code>null</code> for the
+     *            first page
+     * @param limit
+     *            max number of entries in the page
+     * @return entries that follow the given one
+     */
+    @Override
+    public Collection<DropboxFileData> readNotLoadedPage(final DropboxFileData after, final int limit) {
+        return database.read(connection -> {
+            final PreparedStatement statement = connection.prepare(SELECT_NOT_LOADED_PAGE_STATEMENT);
+            long sizeKey = FIRST_PAGE_SIZE_KEY;
+            String id = StringUtils.EMPTY;
+            if (after != null) {
+                sizeKey = after.getSize() == null ? -1 : after.getSize();
+                id = after.getId();
             }
+            statement.setLong(1, sizeKey);
+            statement.setString(2, id);
+            statement.setInt(3, limit);
+            statement.setLong(4, sizeKey);
+            statement.setInt(5, limit);
+            statement.setInt(6, limit);
+
+            return readAll(statement);
+        });
+    }
 
-            return allFileData;
-        }
+    /**
+     * Future that completes when all changes made so far are committed.
+     * Changes are committed right away here, but subclasses may commit them
+     * in background.
+     */
+    @Override
+    @SuppressFBWarnings(value = "NP_NONNULL_PARAM_VIOLATION", justification = "Void future completes with null")
+    public CompletableFuture<Void> whenDurable() {
+        return CompletableFuture.completedFuture(null);
     }
 
-    @SneakyThrows
+    @Override
     public void writeLoadedFlag(final String id) {
-        syncLock.lock();
-        try {
-            updateLoadedStatement.setBoolean(1, Boolean.TRUE);
-            updateLoadedStatement.setString(2, id);
+        database.write(connection -> updateLoadedFlag(connection, id));
+    }
 
-            updateLoadedStatement.executeUpdate();
-        } finally {
-            syncLock.unlock();
-        }
+    @SuppressWarnings("PMD.CloseResource")
+    private int updateLoadedFlag(final DatabaseConnection connection, final String id) throws SQLException {
+        final PreparedStatement updateLoadedStatement = connection.prepare(UPDATE_LOADED_STATEMENT);
+        updateLoadedStatement.setBoolean(1, Boolean.TRUE);
+        updateLoadedStatement.setString(2, id);
+
+        return updateLoadedStatement.executeUpdate();
     }
 
-    @SneakyThrows
-    public void deleteByLowerPath(final String pathLower) {
-        syncLock.lock();
-        try {
-            deleteByPathStatement.setString(1, pathLower);
+    /**
+     * Deleting the path together with everything under it, as deleted
+     * folder in Dropbox takes its content with it.
+     */
+    @Override
+    public void deleteTreeByLowerPath(final String pathLower) {
+        deleteTreesByLowerPath(Collections.singletonList(pathLower));
+    }
 
-            deleteByPathStatement.executeUpdate();
-        } finally {
-            syncLock.unlock();
-        }
+    /**
+     * Reading paths whose parent folder has no row, e.g. left by earlier
+     * versions that deleted only the folder row. Paths are read in pages in
+     * lexicographical order.
+     *
+     * @param after
+     *            last path of the previous page or empty string for the
+     *            first page
+     * @param limit
+     *            max number of paths in the page
+     * @return lower case paths of orphaned rows
+     */
+    @Override
+    public List<String> readOrphanLowerPaths(final String after, final int limit) {
+        return database.read(connection -> {
+            final PreparedStatement statement = connection.prepare(SELECT_ORPHANS_STATEMENT);
+            statement.setString(1, after);
+            statement.setInt(2, limit);
+
+            try (ResultSet resultSet = statement.executeQuery()) {
+                final List<String> paths = new ArrayList<>();
+                while (resultSet.next()) {
+                    paths.add(resultSet.getString(1));
+                }
+                return paths;
+            }
+        });
+    }
+
+    /**
+     * Deleting each path together with everything under it in one
+     * transaction.
+     */
+    @Override
+    public void deleteTreesByLowerPath(final Collection<String> pathsLower) {
+        database.transaction(connection -> {
+            final PreparedStatement deleteTreeStatement = connection.prepare(DELETE_TREE_STATEMENT);
+            int deleted = 0;
+            for (final String pathLower : pathsLower) {
+                deleteTreeStatement.setString(1, pathLower);
+                deleteTreeStatement.setString(2, PathUtil.subtreeLowerBound(pathLower));
+                deleteTreeStatement.setString(3, PathUtil.subtreeUpperBound(pathLower));
+                deleted += deleteTreeStatement.executeUpdate();
+            }
+            return deleted;
+        });
+    }
+
+    /**
+     * Moving the path together with everything under it by rewriting the
+     * path prefix in one statement.
+     *
+     * @param fromPathLower
+     *            previous lower case path
+     * @param toPath
+     *            new path
+     */
+    @Override
+    public void moveTreeByLowerPath(final String fromPathLower, final String toPath) {
+        database.write(connection -> {
+            final PreparedStatement moveTreeStatement = connection.prepare(MOVE_TREE_STATEMENT);
+            final int suffixStart = fromPathLower.length() + 1;
+            moveTreeStatement.setString(1, toPath);
+            moveTreeStatement.setInt(2, suffixStart);
+            moveTreeStatement.setString(3, toPath.toLowerCase(Locale.getDefault()));
+            moveTreeStatement.setInt(4, suffixStart);
+            moveTreeStatement.setString(5, fromPathLower);
+            moveTreeStatement.setString(6, PathUtil.subtreeLowerBound(fromPathLower));
+            moveTreeStatement.setString(7, PathUtil.subtreeUpperBound(fromPathLower));
+
+            return moveTreeStatement.executeUpdate();
+        });
     }
 
     @SneakyThrows
@@ -0,0 +1,309 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package com.yet.dsync.dao;
+
+import com.yet.dsync.dto.DropboxFileData;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * In-memory copy of METADATA rows organized as a tree of lower case path
+ * segments, with a map from id to tree node. Path segments are shared
+ * between rows, so every distinct file or folder name is kept in memory
+ * once.
+ *
+ * A path holds at most one row. Writing a row with another id to the same
+ * path replaces the previous one, as only one of them exists in Dropbox.
+ */
+final class MetadataIndex {
+
+    private static final char SEPARATOR = '/';
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final MetadataIndexNode root = new MetadataIndexNode(StringUtils.EMPTY);
+
+    private final Map<String, MetadataIndexNode> nodesById = new HashMap<>();
+
+    private final Map<String, String> segments = new HashMap<>();
+
+    DropboxFileData get(final String id) {
+        lock.readLock().lock();
+        try {
+            final MetadataIndexNode node = nodesById.get(id);
+            return node == null ? null : node.toFileData();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    DropboxFileData getByLowerPath(final String pathLower) {
+        lock.readLock().lock();
+        try {
+            final MetadataIndexNode node = find(pathLower);
+            return node == null || !node.hasRow() ? null : node.toFileData();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    boolean isLoaded(final String id) {
+        lock.readLock().lock();
+        try {
+            final MetadataIndexNode node = nodesById.get(id);
+            return node != null && node.isLoaded();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Passing every row with its loaded flag to the consumer.
+     */
+    void forEach(final BiConsumer<DropboxFileData, Boolean> consumer) {
+        lock.readLock().lock();
+        try {
+            forEachRow(root, node -> consumer.accept(node.toFileData(), node.isLoaded()));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Lower case paths of rows whose parent folder has no row, in
+     * lexicographical order.
+     */
+    List<String> orphanLowerPaths() {
+        lock.readLock().lock();
+        try {
+            final List<String> orphans = new ArrayList<>();
+            forEachRow(root, node -> {
+                final MetadataIndexNode parent = node.getParent();
+                if (!root.equals(parent) && !parent.hasRow()) {
+                    orphans.add(node.toFileData().getPathLower());
+                }
+            });
+            Collections.sort(orphans);
+            return orphans;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    int size() {
+        lock.readLock().lock();
+        try {
+            return nodesById.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Putting the row the same way as upsert of MetadataDao does: loaded
+     * flag of existing row is kept unless revision changes.
+     *
+     * @return <code>true</code> if any field of the row was changed
+     */
+    boolean put(final DropboxFileData fileData, final boolean loaded) {
+        lock.writeLock().lock();
+        try {
+            final MetadataIndexNode existing = nodesById.get(fileData.getId());
+            final MetadataIndexNode node = getOrCreate(splitLower(fileData.getPathLower()));
+
+            final boolean moved = existing != null && !existing.equals(node);
+            final boolean changed = existing == null || moved || existing.isChanged(fileData);
+            final boolean wasLoaded = existing != null && existing.isLoaded()
+                && Objects.equals(existing.getRev(), fileData.getRev());
+
+            if (node.hasRow() && !node.getId().equals(fileData.getId())) {
+                nodesById.remove(node.getId());
+            }
+
+            node.setRow(fileData, splitDisplay(fileData.getPathDisplay()));
+            node.setLoaded(loaded || wasLoaded);
+            nodesById.put(node.getId(), node);
+
+            /* Pruned after the new node got its row, as it may be the parent of the previous one */
+            if (moved) {
+                existing.clearRow();
+                prune(existing);
+            }
+
+            return changed;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void setLoaded(final String id) {
+        lock.writeLock().lock();
+        try {
+            final MetadataIndexNode node = nodesById.get(id);
+            if (node != null) {
+                node.setLoaded(true);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void removeTree(final String pathLower) {
+        lock.writeLock().lock();
+        try {
+            final MetadataIndexNode node = find(pathLower);
+            if (node != null && !root.equals(node)) {
+                detach(node);
+                forEachRow(node, n -> nodesById.remove(n.getId()));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Moving the path with everything under it, as in
+     * {@link MetadataDao#moveTreeByLowerPath(String, String)}.
+     */
+    void moveTree(final String fromPathLower, final String toPath) {
+        lock.writeLock().lock();
+        try {
+            final MetadataIndexNode node = find(fromPathLower);
+            final String[] toSegments = splitLower(toPath.toLowerCase(Locale.getDefault()));
+            if (node == null || root.equals(node) || toSegments.length == 0) {
+                return;
+            }
+
+            final int replacedSegments = splitLower(fromPathLower).length;
+            final String[] prefix = splitDisplay(toPath);
+            forEachRow(node, n -> n.replaceDisplayPrefix(replacedSegments, prefix));
+
+            detach(node);
+
+            final String[] toParentSegments = new String[toSegments.length - 1];
+            System.arraycopy(toSegments, 0, toParentSegments, 0, toParentSegments.length);
+            attach(getOrCreate(toParentSegments), intern(toSegments[toSegments.length - 1]), node);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Attaching the node under the parent. If the parent already has a child
+     * with this name, then rows of the attached subtree replace rows of the
+     * existing one.
+     */
+    private void attach(final MetadataIndexNode parent, final String name, final MetadataIndexNode node) {
+        final MetadataIndexNode existing = parent.getChild(name);
+        if (existing == null) {
+            parent.addChild(name, node);
+            return;
+        }
+
+        if (node.hasRow()) {
+            if (existing.hasRow()) {
+                nodesById.remove(existing.getId());
+            }
+            existing.copyRow(node);
+            nodesById.put(existing.getId(), existing);
+        }
+        for (final MetadataIndexNode child : node.getChildren()) {
+            attach(existing, child.getName(), child);
+        }
+    }
+
+    private void detach(final MetadataIndexNode node) {
+        final MetadataIndexNode parent = node.getParent();
+        parent.removeChild(node.getName());
+        prune(parent);
+    }
+
+    /**
+     * Removing nodes without row and children up to the root.
+     */
+    private void prune(final MetadataIndexNode start) {
+        MetadataIndexNode node = start;
+        while (!root.equals(node) && node.isEmpty()) {
+            final MetadataIndexNode parent = node.getParent();
+            parent.removeChild(node.getName());
+            node = parent;
+        }
+    }
+
+    private MetadataIndexNode find(final String pathLower) {
+        MetadataIndexNode node = root;
+        for (final String segment : splitLower(pathLower)) {
+            node = node.getChild(segment);
+            if (node == null) {
+                return null;
+            }
+        }
+        return node;
+    }
+
+    private MetadataIndexNode getOrCreate(final String... lowerSegments) {
+        MetadataIndexNode node = root;
+        for (final String lowerSegment : lowerSegments) {
+            final String segment = intern(lowerSegment);
+            MetadataIndexNode child = node.getChild(segment);
+            if (child == null) {
+                child = new MetadataIndexNode(segment);
+                node.addChild(segment, child);
+            }
+            node = child;
+        }
+        return node;
+    }
+
+    private void forEachRow(final MetadataIndexNode start, final Consumer<MetadataIndexNode> action) {
+        final List<MetadataIndexNode> stack = new ArrayList<>();
+        stack.add(start);
+        while (!stack.isEmpty()) {
+            final MetadataIndexNode node = stack.remove(stack.size() - 1);
+            if (node.hasRow()) {
+                action.accept(node);
+            }
+            stack.addAll(node.getChildren());
+        }
+    }
+
+    private String[] splitLower(final String pathLower) {
+        return StringUtils.split(pathLower, SEPARATOR);
+    }
+
+    private String[] splitDisplay(final String path) {
+        final String[] split = StringUtils.split(path, SEPARATOR);
+        for (int i = 0; i < split.length; i++) {
+            split[i] = intern(split[i]);
+        }
+        return split;
+    }
+
+    private String intern(final String segment) {
+        final String interned = segments.putIfAbsent(segment, segment);
+        return interned == null ? segment : interned;
+    }
+
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package com.yet.dsync.dao;
+
+import com.yet.dsync.dto.DropboxFileData;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Node of {@link MetadataIndex} for one lower case path segment. Row fields
+ * are set only if METADATA has a row with this path. Dates are kept as
+ * epoch milliseconds and path as array of shared segments to keep the node
+ * small.
+ */
+final class MetadataIndexNode {
+
+    private static final char SEPARATOR = '/';
+
+    private static final long NO_DATE = Long.MIN_VALUE;
+
+    private static final ZoneId ZONE = ZoneId.of("GMT");
+
+    private MetadataIndexNode parent;
+    private String name;
+    private Map<String, MetadataIndexNode> children;
+
+    private String id;
+    private String[] display;
+    private String rev;
+    private Long size;
+    private long serverModified;
+    private long clientModified;
+    private String contentHash;
+    private boolean loaded;
+
+    MetadataIndexNode(final String name) {
+        this.name = name;
+    }
+
+    MetadataIndexNode getParent() {
+        return parent;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    MetadataIndexNode getChild(final String childName) {
+        return children == null ? null : children.get(childName);
+    }
+
+    Collection<MetadataIndexNode> getChildren() {
+        return children == null ? Collections.emptyList() : new ArrayList<>(children.values());
+    }
+
+    void addChild(final String childName, final MetadataIndexNode node) {
+        if (children == null) {
+            children = new HashMap<>();
+        }
+        node.parent = this;
+        node.name = childName;
+        children.put(childName, node);
+    }
+
+    void removeChild(final String childName) {
+        if (children != null) {
+            children.remove(childName);
+        }
+    }
+
+    boolean isEmpty() {
+        return id == null && (children == null || children.isEmpty());
+    }
+
+    boolean hasRow() {
+        return id != null;
+    }
+
+    String getId() {
+        return id;
+    }
+
+    String getRev() {
+        return rev;
+    }
+
+    boolean isLoaded() {
+        return loaded;
+    }
+
+    void setLoaded(final boolean loaded) {
+        this.loaded = loaded;
+    }
+
+    boolean isChanged(final DropboxFileData fileData) {
+        return !join(display).equals(fileData.getPathDisplay())
+            || !Objects.equals(rev, fileData.getRev())
+            || !Objects.equals(size, fileData.getSize())
+            || serverModified != toEpochMilli(fileData.getServerModified())
+            || clientModified != toEpochMilli(fileData.getClientModified())
+            || !Objects.equals(contentHash, fileData.getContentHash());
+    }
+
+    @SuppressWarnings("PMD.ArrayIsStoredDirectly")
+    void setRow(final DropboxFileData fileData, final String... displaySegments) {
+        id = fileData.getId();
+        display = displaySegments;
+        rev = fileData.getRev();
+        size = fileData.getSize();
+        serverModified = toEpochMilli(fileData.getServerModified());
+        clientModified = toEpochMilli(fileData.getClientModified());
+        contentHash = fileData.getContentHash();
+    }
+
+    void copyRow(final MetadataIndexNode node) {
+        id = node.id;
+        display = node.display;
+        rev = node.rev;
+        size = node.size;
+        serverModified = node.serverModified;
+        clientModified = node.clientModified;
+        contentHash = node.contentHash;
+        loaded = node.loaded;
+    }
+
+    void clearRow() {
+        id = null;
+        display = null;
+        rev = null;
+        size = null;
+        contentHash = null;
+        loaded = false;
+    }
+
+    /**
+     * Replacing first segments of the path, when the node is moved.
+     */
+    void replaceDisplayPrefix(final int replacedSegments, final String... prefix) {
+        if (display == null) {
+            return;
+        }
+        final int suffixLength = Math.max(0, display.length - replacedSegments);
+        final String[] newDisplay = new String[prefix.length + suffixLength];
+        System.arraycopy(prefix, 0, newDisplay, 0, prefix.length);
+        System.arraycopy(display, display.length - suffixLength, newDisplay, prefix.length, suffixLength);
+        display = newDisplay;
+    }
+
+    DropboxFileData toFileData() {
+        final StringBuilder pathLower = new StringBuilder();
+        for (MetadataIndexNode node = this; node.parent != null; node = node.parent) {
+            pathLower.insert(0, node.name).insert(0, SEPARATOR);
+        }
+
+        return DropboxFileData.builder()
+            .id(id)
+            .pathDisplay(join(display))
+            .pathLower(pathLower.toString())
+            .rev(rev)
+            .size(size)
+            .serverModified(toDateTime(serverModified))
+            .clientModified(toDateTime(clientModified))
+            .contentHash(contentHash)
+            .build();
+    }
+
+    private static String join(final String... pathSegments) {
+        final StringBuilder path = new StringBuilder();
+        for (final String segment : pathSegments) {
+            path.append(SEPARATOR).append(segment);
+        }
+        return path.toString();
+    }
+
+    private static long toEpochMilli(final LocalDateTime dateTime) {
+        return dateTime == null ? NO_DATE : dateTime.atZone(ZONE).toInstant().toEpochMilli();
+    }
+
+    private static LocalDateTime toDateTime(final long epochMilli) {
+        return epochMilli == NO_DATE ? null : LocalDateTime.ofInstant(Instant.ofEpochMilli(epochMilli), ZONE);
+    }
+
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package com.yet.dsync.dao;
+
+import com.yet.dsync.dto.DropboxFileData;
+import com.yet.dsync.exception.DSyncClientException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only file of metadata changes. Each record is framed with its
+ * length and CRC32 checksum, so a record torn by crash is detected on replay
+ * and cut off together with everything after it.
+ *
+ * The file is read on replay through memory mapped windows of
+ * {@value #REPLAY_WINDOW_SIZE} bytes, so its size is not limited by the size
+ * of one mapping, and written with plain appends afterwards.
+ */
+final class MetadataLog {
+
+    private static final Logger LOG = LogManager.getLogger(MetadataLog.class);
+
+    private static final byte OP_PUT = 1;
+    private static final byte OP_LOADED = 2;
+    private static final byte OP_DELETE_TREE = 3;
+    private static final byte OP_MOVE_TREE = 4;
+
+    private static final int HEADER_SIZE = Integer.BYTES * 2;
+
+    /* Records are small, longer length can come only from a torn record */
+    private static final int MAX_RECORD_SIZE = 1024 * 1024;
+
+    private static final int REPLAY_WINDOW_SIZE = 64 * 1024 * 1024;
+
+    private static final ZoneId ZONE = ZoneId.of("GMT");
+
+    private final Path file;
+
+    private FileChannel channel;
+
+    private long recordCount;
+
+    MetadataLog(final Path file) {
+        this.file = file;
+    }
+
+    long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Opening the file and passing all its valid records to the handler.
+     */
+    void open(final Handler handler) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+
+        final long size = channel.size();
+        final CRC32 crc = new CRC32();
+        long validSize = 0;
+        while (size - validSize >= HEADER_SIZE) {
+            final long windowSize = Math.min(REPLAY_WINDOW_SIZE, size - validSize);
+            final MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, validSize, windowSize);
+            final int replayedSize = replay(window, handler, crc);
+            if (replayedSize == 0) {
+                /* Window is bigger than any record, so the first record is torn */
+                break;
+            }
+            validSize += replayedSize;
+        }
+
+        if (validSize < size) {
+            LOG.warn("Cutting off {} bytes of incomplete records in {}", size - validSize, file);
+            channel.truncate(validSize);
+        }
+        channel.position(validSize);
+    }
+
+    /**
+     * Replaying records that are complete and valid in the window.
+     *
+     * @return size of replayed records
+     */
+    private int replay(final ByteBuffer buffer, final Handler handler, final CRC32 crc) {
+        while (buffer.remaining() >= HEADER_SIZE) {
+            final int start = buffer.position();
+            final int length = buffer.getInt();
+            if (length <= 0 || length > MAX_RECORD_SIZE || length > buffer.remaining() - Integer.BYTES) {
+                return start;
+            }
+            final int checksum = buffer.getInt();
+
+            final byte[] payload = new byte[length];
+            buffer.get(payload);
+            crc.reset();
+            crc.update(payload);
+            if ((int) crc.getValue() != checksum) {
+                return start;
+            }
+
+            apply(ByteBuffer.wrap(payload), handler);
+            recordCount++;
+        }
+        return buffer.position();
+    }
+
+    private void apply(final ByteBuffer payload, final Handler handler) {
+        final byte op = payload.get();
+        switch (op) {
+            case OP_PUT:
+                final DropboxFileData fileData = DropboxFileData.builder()
+                    .id(readString(payload))
+                    .pathDisplay(readString(payload))
+                    .pathLower(readString(payload))
+                    .rev(readString(payload))
+                    .size(readLong(payload))
+                    .serverModified(toDateTime(readLong(payload)))
+                    .clientModified(toDateTime(readLong(payload)))
+                    .contentHash(readString(payload))
+                    .build();
+                handler.put(fileData, payload.get() != 0);
+                break;
+            case OP_LOADED:
+                handler.loaded(readString(payload));
+                break;
+            case OP_DELETE_TREE:
+                handler.deleteTree(readString(payload));
+                break;
+            case OP_MOVE_TREE:
+                handler.moveTree(readString(payload), readString(payload));
+                break;
+            default:
+                throw new DSyncClientException("Unknown metadata log record " + op + " in " + file);
+        }
+    }
+
+    void appendPut(final DropboxFileData fileData, final boolean loaded) throws IOException {
+        append(OP_PUT, out -> {
+            writeString(out, fileData.getId());
+            writeString(out, fileData.getPathDisplay());
+            writeString(out, fileData.getPathLower());
+            writeString(out, fileData.getRev());
+            writeLong(out, fileData.getSize());
+            writeLong(out, toEpochMilli(fileData.getServerModified()));
+            writeLong(out, toEpochMilli(fileData.getClientModified()));
+            writeString(out, fileData.getContentHash());
+            out.writeBoolean(loaded);
+        });
+    }
+
+    void appendLoaded(final String id) throws IOException {
+        append(OP_LOADED, out -> writeString(out, id));
+    }
+
+    void appendDeleteTree(final String pathLower) throws IOException {
+        append(OP_DELETE_TREE, out -> writeString(out, pathLower));
+    }
+
+    void appendMoveTree(final String fromPathLower, final String toPath) throws IOException {
+        append(OP_MOVE_TREE, out -> {
+            writeString(out, fromPathLower);
+            writeString(out, toPath);
+        });
+    }
+
+    /**
+     * Making all appended records durable.
+     */
+    void force() throws IOException {
+        channel.force(false);
+    }
+
+    /**
+     * Replacing the file with one that has a put record for every row, which
+     * drops records of overwritten and deleted rows.
+     *
+     * @param rows
+     *            passes every row with its loaded flag to the given consumer
+     */
+    void rewrite(final Consumer<BiConsumer<DropboxFileData, Boolean>> rows) throws IOException {
+        final Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        final MetadataLog tempLog = new MetadataLog(tempFile);
+        tempLog.channel = FileChannel.open(tempFile, StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        try {
+            rows.accept((fileData, loaded) -> {
+                try {
+                    tempLog.appendPut(fileData, loaded);
+                } catch (final IOException ex) {
+                    throw new DSyncClientException(ex);
+                }
+            });
+            tempLog.force();
+        } finally {
+            tempLog.channel.close();
+        }
+
+        channel.close();
+        Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        recordCount = tempLog.recordCount;
+    }
+
+    private void append(final byte op, final RecordWriter writer) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(op);
+            writer.write(out);
+        }
+        final byte[] payload = bytes.toByteArray();
+        if (payload.length > MAX_RECORD_SIZE) {
+            throw new DSyncClientException("Metadata log record is too big: " + payload.length + " bytes");
+        }
+
+        final CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        final ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        record.putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+        record.flip();
+        while (record.hasRemaining()) {
+            channel.write(record);
+        }
+        recordCount++;
+    }
+
+    private static void writeString(final DataOutputStream out, final String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(final ByteBuffer buffer) {
+        if (buffer.get() == 0) {
+            return null;
+        }
+        final byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeLong(final DataOutputStream out, final Long value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeLong(value);
+        }
+    }
+
+    private static Long readLong(final ByteBuffer buffer) {
+        return buffer.get() == 0 ? null : buffer.getLong();
+    }
+
+    private static Long toEpochMilli(final LocalDateTime dateTime) {
+        return dateTime == null ? null : dateTime.atZone(ZONE).toInstant().toEpochMilli();
+    }
+
+    private static LocalDateTime toDateTime(final Long epochMilli) {
+        return epochMilli == null ? null : LocalDateTime.ofInstant(Instant.ofEpochMilli(epochMilli), ZONE);
+    }
+
+    /**
+     * Receives records of the log on replay.
+     */
+    interface Handler {
+        void put(DropboxFileData fileData, boolean loaded);
+
+        void loaded(String id);
+
+        void deleteTree(String pathLower);
+
+        void moveTree(String fromPathLower, String toPath);
+    }
+
+    @FunctionalInterface
+    private interface RecordWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+}
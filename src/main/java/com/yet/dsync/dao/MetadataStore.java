@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package com.yet.dsync.dao;
+
+import com.yet.dsync.dto.DropboxFileData;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+
+/**
+ * Storage of Dropbox metadata: one row per file or folder with the flag
+ * whether its content is loaded locally.
+ */
+public interface MetadataStore {
+
+    DropboxFileData readById(String id);
+
+    DropboxFileData readByLowerPath(String lowerPath);
+
+    /**
+     * Reading loaded files with the given content hash.
+     */
+    Collection<DropboxFileData> readLoadedByContentHash(String contentHash, int limit);
+
+    /**
+     * Reading one page of not loaded entries in the order of processing
+     * priority: folders first, then files from small to big.
+     *
+     * @param after
+     *            last entry of the previous page or <code>null</code> for the
+     *            first page
+     * @param limit
+     *            max number of entries in the page
+     * @return entries that follow the given one
+     */
+    Collection<DropboxFileData> readNotLoadedPage(DropboxFileData after, int limit);
+
+    /**
+     * Reading paths whose parent folder has no row, in lexicographical order.
+     *
+     * @param after
+     *            last path of the previous page or empty string for the
+     *            first page
+     * @param limit
+     *            max number of paths in the page
+     * @return lower case paths of orphaned rows
+     */
+    List<String> readOrphanLowerPaths(String after, int limit);
+
+    boolean isEmpty();
+
+    /**
+     * Passing every row with its loaded flag to the consumer.
+     */
+    void forEachRow(BiConsumer<DropboxFileData, Boolean> consumer);
+
+    /**
+     * Inserting new row or updating existing one. Loaded flag is reset when
+     * revision changes.
+     */
+    WriteOutcome write(DropboxFileData fileData);
+
+    /**
+     * Writing all rows. Failure of one row doesn't fail others.
+     *
+     * @return outcome of each row in the order of the collection
+     */
+    List<WriteOutcome> writeAll(Collection<DropboxFileData> fileDataCollection);
+
+    /**
+     * Writing all rows with loaded flag set.
+     */
+    void writeAllLoaded(Collection<DropboxFileData> fileDataCollection);
+
+    /**
+     * Writing rows of one listed page and then running the checkpoint that
+     * saves position of the listing. The checkpoint is never saved without
+     * the rows.
+     */
+    void writePage(Collection<DropboxFileData> fileDataCollection, Runnable checkpoint);
+
+    void writeLoadedFlag(String id);
+
+    /**
+     * Deleting the path together with everything under it.
+     */
+    void deleteTreeByLowerPath(String pathLower);
+
+    void deleteTreesByLowerPath(Collection<String> pathsLower);
+
+    /**
+     * Moving the path together with everything under it.
+     *
+     * @param fromPathLower
+     *            previous lower case path
+     * @param toPath
+     *            new path
+     */
+    void moveTreeByLowerPath(String fromPathLower, String toPath);
+
+    /**
+     * Future that completes when all changes made so far are durable.
+     */
+    CompletableFuture<Void> whenDurable();
+
+    /**
+     * Outcome of writing one row.
+     */
+    enum WriteOutcome {
+        /** Row was inserted or its fields were changed */
+        CHANGED,
+        /** Row already had the same fields */
+        UNCHANGED,
+        /** Row was not written, e.g. because of violated constraint */
+        FAILED
+    }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package com.yet.dsync.dao;
+
+import com.yet.dsync.exception.DSyncClientException;
+import com.yet.dsync.util.PropertyUtil;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Creating the metadata store selected with {@code dsync.metadata.store} property.
+ */
+public final class MetadataStoreFactory {
+
+    /* Reading metadata directly from database instead of in-memory index, e.g. to save memory */
+    private static final boolean DISABLE_METADATA_INDEX = Boolean.getBoolean("dsync.metadata.disableIndex");
+
+    private static final String LOG_SUFFIX = ".metadata.log";
+
+    private MetadataStoreFactory() {
+    }
+
+    /**
+     * Kinds of metadata storage.
+     */
+    public enum Backend {
+        /* Rows in METADATA table of the database, indexed in memory unless disabled */
+        SQLITE,
+        /* Rows in memory, changes appended to a log file next to the database */
+        LOG
+    }
+
+    public static Backend getConfiguredBackend() {
+        return PropertyUtil.getEnum("dsync.metadata.store", Backend.class, Backend.SQLITE);
+    }
+
+    /**
+     * Creating the configured metadata store for the client. Fails when the
+     * store is empty, but the other one has rows, e.g. when backend is
+     * switched without migration, as all synced files would look unknown.
+     */
+    public static MetadataStore open(final Database database, final String dbDir, final String dbName) {
+        final Backend backend = getConfiguredBackend();
+        final Backend other = backend == Backend.LOG ? Backend.SQLITE : Backend.LOG;
+        final MetadataStore store = create(backend, database, dbDir, dbName);
+        if (store.isEmpty() && hasRows(other, database, dbDir, dbName)) {
+            throw new DSyncClientException("Metadata store " + backend + " is empty, but " + other
+                + " has metadata. Copy it with MetadataStoreMigration -from " + other + " -to " + backend
+                + " or start with -Ddsync.metadata.store=" + other);
+        }
+        return store;
+    }
+
+    private static boolean hasRows(final Backend backend, final Database database,
+            final String dbDir, final String dbName) {
+        if (backend == Backend.LOG) {
+            final File logFile = getLogPath(dbDir, dbName).toFile();
+            return logFile.length() > 0;
+        } else {
+            return !new MetadataDao(database).isEmpty();
+        }
+    }
+
+    public static MetadataStore create(final Backend backend, final Database database,
+            final String dbDir, final String dbName) {
+        if (backend == Backend.LOG) {
+            return new LogMetadataStore(getLogPath(dbDir, dbName));
+        } else if (DISABLE_METADATA_INDEX) {
+            return new MetadataDao(database);
+        } else {
+            return new IndexedMetadataDao(database);
+        }
+    }
+
+    public static Path getLogPath(final String dbDir, final String dbName) {
+        return Paths.get(dbDir, dbName + LOG_SUFFIX);
+    }
+
+}
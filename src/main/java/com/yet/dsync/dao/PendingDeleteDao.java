@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package com.yet.dsync.dao;
+
+import com.yet.dsync.dto.DropboxChangeType;
+import com.yet.dsync.dto.DropboxFileData;
+import com.yet.dsync.dto.PendingDeleteData;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Deletes listed from Dropbox that are not applied locally yet. They are
+ * saved together with the listing checkpoint, so the cursor never moves past
+ * a delete that can be lost, and removed when the delete is applied.
+ */
+public class PendingDeleteDao {
+
+    static final String CREATE_TABLE_STATEMENT = "CREATE TABLE IF NOT EXISTS PENDING_DELETE ("
+        + "PLOWER   TEXT PRIMARY KEY  NOT NULL,"
+        + "PATH     TEXT              NOT NULL"
+        + ")";
+
+    static final String ADD_STORED_ID_STATEMENT = "ALTER TABLE PENDING_DELETE ADD COLUMN SID TEXT";
+
+    private static final String SELECT_ALL_STATEMENT = "SELECT PLOWER, PATH, SID FROM PENDING_DELETE";
+
+    private static final String INSERT_OR_REPLACE_STATEMENT = "INSERT OR REPLACE INTO PENDING_DELETE ("
+        + "PLOWER,PATH,SID) VALUES (?,?,?)";
+
+    private static final String DELETE_STATEMENT = "DELETE FROM PENDING_DELETE WHERE PLOWER = ?";
+
+    private final Database database;
+
+    public PendingDeleteDao(final Database database) {
+        this.database = database;
+    }
+
+    public List<PendingDeleteData> readAll() {
+        return database.read(connection -> {
+            try (ResultSet resultSet = connection.prepare(SELECT_ALL_STATEMENT).executeQuery()) {
+                final List<PendingDeleteData> deletes = new ArrayList<>();
+                while (resultSet.next()) {
+                    deletes.add(new PendingDeleteData(DropboxFileData.builder()
+                        .changeType(DropboxChangeType.DELETE)
+                        .pathLower(resultSet.getString(1))
+                        .pathDisplay(resultSet.getString(2))
+                        .build(), resultSet.getString(3)));
+                }
+                return deletes;
+            }
+        });
+    }
+
+    /**
+     * Wrapping the listing checkpoint, so it saves changes of pending deletes
+     * in the same transaction. When the checkpoint is run inside of the page
+     * transaction, everything is committed together with the page.
+     *
+     * @param resolvedPathsLower
+     *            paths which deletes are not pending anymore
+     * @param deletes
+     *            new pending deletes
+     * @param checkpoint
+     *            checkpoint that saves position of the listing
+     * @return checkpoint that saves pending deletes and position of the listing
+     */
+    public Runnable withCheckpoint(final Collection<String> resolvedPathsLower,
+                                   final Collection<PendingDeleteData> deletes, final Runnable checkpoint) {
+        return () -> database.transaction(connection -> {
+            final PreparedStatement deleteStatement = connection.prepare(DELETE_STATEMENT);
+            for (final String pathLower : resolvedPathsLower) {
+                deleteStatement.setString(1, pathLower);
+                deleteStatement.executeUpdate();
+            }
+
+            final PreparedStatement insertStatement = connection.prepare(INSERT_OR_REPLACE_STATEMENT);
+            for (final PendingDeleteData pendingDelete : deletes) {
+                insertStatement.setString(1, pendingDelete.getDelete().getPathLower());
+                insertStatement.setString(2, pendingDelete.getDelete().getPathDisplay());
+                insertStatement.setString(3, pendingDelete.getStoredId());
+                insertStatement.executeUpdate();
+            }
+
+            checkpoint.run();
+            return null;
+        });
+    }
+
+    public void delete(final String pathLower) {
+        database.write(connection -> {
+            final PreparedStatement deleteStatement = connection.prepare(DELETE_STATEMENT);
+            deleteStatement.setString(1, pathLower);
+            return deleteStatement.executeUpdate();
+        });
+    }
+
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.yet.dsync.dao;
+
+import com.yet.dsync.dto.UploadSessionData;
+import lombok.SneakyThrows;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.Collection;
+import java.util.LinkedList;
+
+public class UploadSessionDao {
+
+    static final String CREATE_TABLE_STATEMENT = "CREATE TABLE IF NOT EXISTS UPLOAD_SESSION ("
+        + "PLOWER   TEXT PRIMARY KEY  NOT NULL,"
+        + "PATH     TEXT              NOT NULL,"
+        + "SESSION  TEXT              NOT NULL,"
+        + "OFFSET   INTEGER           NOT NULL,"
+        + "SIZE     INTEGER           NOT NULL,"
+        + "MODIFIED INTEGER           NOT NULL,"
+        + "STARTED  INTEGER           NOT NULL"
+        + ")";
+
+    private static final String SELECT_STATEMENT = "SELECT * FROM UPLOAD_SESSION WHERE PLOWER = ?";
+
+    private static final String SELECT_ALL_STATEMENT = "SELECT * FROM UPLOAD_SESSION";
+
+    private static final String INSERT_OR_REPLACE_STATEMENT = "INSERT OR REPLACE INTO UPLOAD_SESSION ("
+        + "PLOWER,PATH,SESSION,OFFSET,SIZE,MODIFIED,STARTED) VALUES (?,?,?,?,?,?,?)";
+
+    private static final String DELETE_STATEMENT = "DELETE FROM UPLOAD_SESSION WHERE PLOWER = ?";
+
+    private static final int COL_PATH_LOWER = 1;
+    private static final int COL_PATH = COL_PATH_LOWER + 1;
+    private static final int COL_SESSION = COL_PATH + 1;
+    private static final int COL_OFFSET = COL_SESSION + 1;
+    private static final int COL_SIZE = COL_OFFSET + 1;
+    private static final int COL_MODIFIED = COL_SIZE + 1;
+    private static final int COL_STARTED = COL_MODIFIED + 1;
+
+    private final Database database;
+
+    public UploadSessionDao(final Database database) {
+        this.database = database;
+    }
+
+    public UploadSessionData read(final String pathLower) {
+        return database.read(connection -> {
+            final PreparedStatement readStatement = connection.prepare(SELECT_STATEMENT);
+            readStatement.setString(1, pathLower);
+
+            try (ResultSet resultSet = readStatement.executeQuery()) {
+                if (resultSet.next()) {
+                    return buildSessionData(resultSet);
+                } else {
+                    return null;
+                }
+            }
+        });
+    }
+
+    public Collection<UploadSessionData> readAll() {
+        return database.read(connection -> {
+            try (ResultSet resultSet = connection.prepare(SELECT_ALL_STATEMENT).executeQuery()) {
+                final Collection<UploadSessionData> allSessionData = new LinkedList<>();
+
+                while (resultSet.next()) {
+                    allSessionData.add(buildSessionData(resultSet));
+                }
+
+                return allSessionData;
+            }
+        });
+    }
+
+    @SneakyThrows
+    private UploadSessionData buildSessionData(final ResultSet resultSet) {
+        return UploadSessionData.builder()
+            .pathLower(resultSet.getString(COL_PATH_LOWER))
+            .pathDisplay(resultSet.getString(COL_PATH))
+            .sessionId(resultSet.getString(COL_SESSION))
+            .offset(resultSet.getLong(COL_OFFSET))
+            .size(resultSet.getLong(COL_SIZE))
+            .lastModified(resultSet.getLong(COL_MODIFIED))
+            .started(resultSet.getLong(COL_STARTED))
+            .build();
+    }
+
+    public void write(final UploadSessionData sessionData) {
+        database.write(connection -> {
+            final PreparedStatement writeStatement = connection.prepare(INSERT_OR_REPLACE_STATEMENT);
+            writeStatement.setString(COL_PATH_LOWER, sessionData.getPathLower());
+            writeStatement.setString(COL_PATH, sessionData.getPathDisplay());
+            writeStatement.setString(COL_SESSION, sessionData.getSessionId());
+            writeStatement.setLong(COL_OFFSET, sessionData.getOffset());
+            writeStatement.setLong(COL_SIZE, sessionData.getSize());
+            writeStatement.setLong(COL_MODIFIED, sessionData.getLastModified());
+            writeStatement.setLong(COL_STARTED, sessionData.getStarted());
+
+            return writeStatement.executeUpdate();
+        });
+    }
+
+    public void delete(final String pathLower) {
+        database.write(connection -> {
+            final PreparedStatement deleteStatement = connection.prepare(DELETE_STATEMENT);
+            deleteStatement.setString(1, pathLower);
+
+            return deleteStatement.executeUpdate();
+        });
+    }
+
+}
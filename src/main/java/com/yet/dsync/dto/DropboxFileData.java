@@ -39,6 +39,8 @@ public final class DropboxFileData {
 
     private final LocalDateTime clientModified;
 
+    private final String contentHash;
+
     public boolean isFile() {
         return rev != null;
     }
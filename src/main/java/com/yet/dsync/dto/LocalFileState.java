@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.yet.dsync.dto;
+
+import lombok.Builder;
+import lombok.Data;
+
+import java.util.Objects;
+
+/**
+ * Last known state of local file. If file key (inode), size and modification
+ * time of the file are the same, then content hash is still valid and file
+ * doesn't need to be read again.
+ */
+@Data
+@Builder(toBuilder = true)
+public final class LocalFileState {
+
+    private final String pathLower;
+
+    private final String pathDisplay;
+
+    private final String fileKey;
+
+    private final long size;
+
+    private final long lastModified;
+
+    private final String contentHash;
+
+    public boolean isSameState(final String otherFileKey, final long otherSize, final long otherLastModified) {
+        return Objects.equals(fileKey, otherFileKey) && size == otherSize && lastModified == otherLastModified;
+    }
+
+}
@@ -26,7 +26,13 @@ public enum LocalFolderChangeType {
 
     MODIFY,
 
-    DELETE;
+    DELETE,
+
+    /**
+     * Local file or folder was moved. It is detected by pairing of delete
+     * and create events, as watch service doesn't report moves.
+     */
+    MOVE;
 
     public static LocalFolderChangeType fromWatchEventKind(final Kind<Path> watchEventKind) {
         if (watchEventKind == StandardWatchEventKinds.ENTRY_CREATE) {
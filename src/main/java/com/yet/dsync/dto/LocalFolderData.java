@@ -14,16 +14,27 @@
 
 package com.yet.dsync.dto;
 
+import lombok.AllArgsConstructor;
 import lombok.Data;
 
 import java.nio.file.Path;
 
 @Data
+@AllArgsConstructor
 public class LocalFolderData  {
 
     private final Path path;
     private final LocalFolderChangeType changeType;
 
+    /**
+     * Previous path of the moved file or folder, null for other changes
+     */
+    private final Path sourcePath;
+
+    public LocalFolderData(final Path path, final LocalFolderChangeType changeType) {
+        this(path, changeType, null);
+    }
+
     public boolean isFile() {
         return path.toFile().isFile();
     }
@@ -0,0 +1,31 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package com.yet.dsync.dto;
+
+import lombok.Data;
+
+/**
+ * Delete listed from Dropbox that is not applied locally yet, together with
+ * id of the metadata that was stored at its path when it was listed. If the
+ * path has metadata with other id later, then the path was created again and
+ * the delete is not applied.
+ */
+@Data
+public final class PendingDeleteData {
+
+    private final DropboxFileData delete;
+
+    private final String storedId;
+
+}
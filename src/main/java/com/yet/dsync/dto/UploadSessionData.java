@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.yet.dsync.dto;
+
+import lombok.Builder;
+import lombok.Data;
+
+/**
+ * State of not finished chunked upload. It is enough to continue the upload
+ * session from the last uploaded chunk if the local file was not changed.
+ */
+@Data
+@Builder(toBuilder = true)
+public final class UploadSessionData {
+
+    private final String pathLower;
+
+    private final String pathDisplay;
+
+    private final String sessionId;
+
+    private final long offset;
+
+    private final long size;
+
+    private final long lastModified;
+
+    private final long started;
+
+    public boolean isSameFile(final long fileSize, final long fileLastModified) {
+        return size == fileSize && lastModified == fileLastModified;
+    }
+
+}
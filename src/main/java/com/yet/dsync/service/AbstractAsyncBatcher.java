@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package com.yet.dsync.service;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.yet.dsync.exception.DSyncClientException;
+import lombok.AccessLevel;
+import lombok.RequiredArgsConstructor;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Sends entries to Dropbox in batches of up to {@value #MAX_BATCH_SIZE}
+ * entries. The batch is sent when it is full or after flush interval. The
+ * batch job status is checked by the scheduled task, so no thread is blocked
+ * while the job is running. Entries that failed because of temporary errors
+ * are added to the next batch, up to {@value #MAX_ATTEMPTS} attempts.
+ *
+ * Pending entries are kept in a list, unless subclass keeps them in its own
+ * way by overriding {@link #addPending(List)}, {@link #takePending(int)} and
+ * {@link #countPending()}, which are called under the lock.
+ *
+ * @param <E> type of batch entries
+ * @param <R> type of batch result
+ */
+public abstract class AbstractAsyncBatcher<E extends AbstractAsyncBatcher.BatchEntry, R> {
+
+    /* According to API, most batches can't have more than 1000 entries */
+    static final int MAX_BATCH_SIZE = 1000;
+
+    static final int MAX_ATTEMPTS = 3;
+
+    private static final Logger LOG = LogManager.getLogger(AbstractAsyncBatcher.class);
+
+    private static final long JOB_CHECK_INTERVAL_MS = 500;
+
+    private final String name;
+
+    private final List<E> pendingEntries = new ArrayList<>();
+    private final Lock syncLock = new ReentrantLock(true);
+
+    private final ScheduledExecutorService scheduledExecutorService;
+
+    /**
+     * @param name
+     *            name of the batch for logging and thread name
+     * @param flushIntervalMs
+     *            interval of sending batch that is not full
+     */
+    protected AbstractAsyncBatcher(final String name, final long flushIntervalMs) {
+        this.name = name;
+
+        scheduledExecutorService = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat(name + "-batch-%d").build());
+        scheduledExecutorService.scheduleWithFixedDelay(this::flush,
+                flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starting the batch job in Dropbox.
+     *
+     * @return result if the batch is complete or id of the started job
+     */
+    protected abstract JobState<R> submit(List<E> batch);
+
+    /**
+     * Checking state of the batch job.
+     *
+     * @return result if the job is complete or the same job id if it is
+     *         still running
+     */
+    protected abstract JobState<R> check(String asyncJobId);
+
+    /**
+     * Applying the result of the batch.
+     *
+     * @return entries that failed with temporary error and can be retried
+     */
+    protected abstract List<E> complete(List<E> batch, R result);
+
+    protected abstract E nextAttempt(E entry);
+
+    /**
+     * Handling entry that failed in all attempts.
+     */
+    protected abstract void giveUp(E entry);
+
+    protected final void addEntries(final List<E> entries) {
+        syncLock.lock();
+        try {
+            addPending(entries);
+            if (countPending() >= MAX_BATCH_SIZE) {
+                scheduledExecutorService.execute(this::flush);
+            }
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    /**
+     * Running the action under the lock of pending entries.
+     */
+    protected final void withPendingLocked(final Runnable action) {
+        syncLock.lock();
+        try {
+            action.run();
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    protected void addPending(final List<E> entries) {
+        pendingEntries.addAll(entries);
+    }
+
+    protected List<E> takePending(final int maxSize) {
+        final List<E> head = pendingEntries.subList(0, Math.min(maxSize, pendingEntries.size()));
+        final List<E> batch = new ArrayList<>(head);
+        head.clear();
+        return batch;
+    }
+
+    protected int countPending() {
+        return pendingEntries.size();
+    }
+
+    private void flush() {
+        final List<E> batch;
+        syncLock.lock();
+        try {
+            batch = takePending(MAX_BATCH_SIZE);
+        } finally {
+            syncLock.unlock();
+        }
+
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        LOG.debug("Sending {} batch of {} entries", () -> name, batch::size);
+        try {
+            handleState(batch, submit(batch));
+        } catch (final DSyncClientException ex) {
+            retryOrFail(batch);
+        }
+    }
+
+    private void scheduleJobCheck(final List<E> batch, final String asyncJobId) {
+        scheduledExecutorService.schedule(() -> checkJob(batch, asyncJobId),
+                JOB_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void checkJob(final List<E> batch, final String asyncJobId) {
+        try {
+            handleState(batch, check(asyncJobId));
+        } catch (final DSyncClientException ex) {
+            retryOrFail(batch);
+        }
+    }
+
+    private void handleState(final List<E> batch, final JobState<R> state) {
+        if (state.isComplete()) {
+            retryOrFail(complete(batch, state.getResult()));
+        } else if (state.isRunning()) {
+            scheduleJobCheck(batch, state.getAsyncJobId());
+        } else {
+            LOG.error("Unexpected {} batch state: {}", () -> name, state::getUnexpectedTag);
+            retryOrFail(batch);
+        }
+    }
+
+    private void retryOrFail(final List<E> entries) {
+        final List<E> retryEntries = new ArrayList<>(entries.size());
+
+        for (final E entry : entries) {
+            if (entry.getAttempt() < MAX_ATTEMPTS) {
+                retryEntries.add(nextAttempt(entry));
+            } else {
+                giveUp(entry);
+            }
+        }
+
+        if (!retryEntries.isEmpty()) {
+            LOG.debug("Retrying {} of {} entries in next batch", () -> name, retryEntries::size);
+            addEntries(retryEntries);
+        }
+    }
+
+    /**
+     * Entry of the batch that knows its attempt number, starting from 1.
+     */
+    public interface BatchEntry {
+        int getAttempt();
+    }
+
+    /**
+     * State of the batch job: either complete with the result, or running
+     * with the job id, or unexpected.
+     *
+     * @param <R> type of batch result
+     */
+    @RequiredArgsConstructor(access = AccessLevel.PRIVATE)
+    protected static final class JobState<R> {
+        private final R result;
+        private final String asyncJobId;
+        private final Object unexpectedTag;
+
+        public static <R> JobState<R> complete(final R result) {
+            return new JobState<>(result, null, null);
+        }
+
+        public static <R> JobState<R> running(final String asyncJobId) {
+            return new JobState<>(null, asyncJobId, null);
+        }
+
+        public static <R> JobState<R> unexpected(final Object tag) {
+            return new JobState<>(null, null, tag);
+        }
+
+        boolean isComplete() {
+            return result != null;
+        }
+
+        boolean isRunning() {
+            return asyncJobId != null;
+        }
+
+        R getResult() {
+            return result;
+        }
+
+        String getAsyncJobId() {
+            return asyncJobId;
+        }
+
+        Object getUnexpectedTag() {
+            return unexpectedTag;
+        }
+    }
+
+}
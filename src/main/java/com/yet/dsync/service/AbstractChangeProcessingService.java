@@ -16,6 +16,7 @@ package com.yet.dsync.service;
 
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.yet.dsync.exception.DSyncClientException;
+import com.yet.dsync.util.PropertyUtil;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import lombok.RequiredArgsConstructor;
 import org.apache.logging.log4j.LogManager;
@@ -27,6 +28,9 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 public abstract class AbstractChangeProcessingService<T> {
 
@@ -40,6 +44,10 @@ public abstract class AbstractChangeProcessingService<T> {
 
     private static final int PROCESSING_QUEUE_CAPACITY = 100;
 
+    /* Number of queued changes above which bounded scheduling waits */
+    private static final int BOUNDED_QUEUE_LIMIT = PropertyUtil.getInt("dsync.processing.boundedQueueLimit",
+        1000, 1, 1_000_000);
+
     private final GlobalOperationsTracker globalOperationsTracker;
 
     private final Comparator<? super T> changeComparator = (a, b) -> {
@@ -63,6 +71,9 @@ public abstract class AbstractChangeProcessingService<T> {
 
     private final ExecutorService executorService;
 
+    private final Lock queueLock = new ReentrantLock();
+    private final Condition queueDrained = queueLock.newCondition();
+
     public AbstractChangeProcessingService(final String processingThreadName,
                                            final GlobalOperationsTracker globalOperationsTracker) {
         this.globalOperationsTracker = globalOperationsTracker;
@@ -114,6 +125,17 @@ public abstract class AbstractChangeProcessingService<T> {
 
     protected abstract String extractPathLower(T changeData);
 
+    /**
+     * Called when change data is not scheduled, because its path is tracked
+     * by other operation.
+     *
+     * @param changeData
+     *            Change data object that is skipped
+     */
+    protected void skipChange(final T changeData) {
+        // nothing to clean up by default
+    }
+
     public GlobalOperationsTracker getGlobalOperationsTracker() {
         return globalOperationsTracker;
     }
@@ -132,6 +154,7 @@ public abstract class AbstractChangeProcessingService<T> {
 
         if (globalOperationsTracker.isTracked(pathLower)) {
             LOG.debug("Path is already tracked. Skip: {}", () -> pathLower);
+            skipChange(changeData);
         } else {
             try {
                 if (isFile(changeData)) {
@@ -150,6 +173,60 @@ public abstract class AbstractChangeProcessingService<T> {
         }
     }
 
+    /**
+     * Scheduling change data for processing only when processing queues have
+     * less than 1000 changes by default (dsync.processing.boundedQueueLimit),
+     * so the producer of big backlog doesn't hold all of it in memory.
+     *
+     * @param changeData
+     *            Change data object that needs to be scheduled for processing
+     * @throws InterruptedException
+     *             if interrupted while waiting for the queues to drain
+     */
+    public void scheduleProcessingBounded(final T changeData) throws InterruptedException {
+        queueLock.lock();
+        try {
+            while (queuedCount() >= BOUNDED_QUEUE_LIMIT) {
+                queueDrained.await();
+            }
+        } finally {
+            queueLock.unlock();
+        }
+        scheduleProcessing(changeData);
+    }
+
+    /**
+     * Scheduling change data for processing only if processing queues have
+     * room, without waiting for them to drain.
+     *
+     * @param changeData
+     *            Change data object that needs to be scheduled for processing
+     * @return true if change data was scheduled
+     */
+    public boolean offerProcessing(final T changeData) {
+        if (queuedCount() >= BOUNDED_QUEUE_LIMIT
+                || globalOperationsTracker.isTracked(extractPathLower(changeData))) {
+            return false;
+        }
+        scheduleProcessing(changeData);
+        return true;
+    }
+
+    private int queuedCount() {
+        return quickProcessingQueue.size() + slowProcessingQueue.size();
+    }
+
+    private void signalIfDrained() {
+        if (queuedCount() < BOUNDED_QUEUE_LIMIT) {
+            queueLock.lock();
+            try {
+                queueDrained.signalAll();
+            } finally {
+                queueLock.unlock();
+            }
+        }
+    }
+
     /**
      * Processing thread that will take change data from the queue and call the
      * {@link #processChange(Object)} method
@@ -164,6 +241,7 @@ public abstract class AbstractChangeProcessingService<T> {
             while (!Thread.interrupted()) {
                 try {
                     final T changeData = queue.take();
+                    signalIfDrained();
                     processChange(changeData);
                 } catch (final Exception ex) {
                     LOG.error("Failed to process changeData", ex);
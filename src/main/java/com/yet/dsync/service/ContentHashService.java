@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.yet.dsync.service;
+
+import com.yet.dsync.util.ContentHashUtil;
+import com.yet.dsync.util.PropertyUtil;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Calculates Dropbox content hash of local files using all cores. Blocks of
+ * big files are hashed in parallel on own fork-join pool, which is separate
+ * from the upload and download threads, so hashing doesn't take network
+ * threads and network waits don't take hashing threads. Files that fit into
+ * one block are hashed in the calling thread.
+ */
+public class ContentHashService {
+
+    /**
+     * How the blocks are read from the file.
+     */
+    public enum ReadMode {
+        /**
+         * Each block is memory-mapped and hashed directly from the page cache.
+         * Access to mapped block of file truncated while hashing fails the JVM
+         * with SIGBUS, so it is used only if chosen explicitly
+         */
+        MMAP,
+        /** Each block is read with positional read into direct buffer of the hashing thread, default mode */
+        DIRECT,
+        /** File is read sequentially in the calling thread */
+        STREAM
+    }
+
+    private static final Logger LOG = LogManager.getLogger(ContentHashService.class);
+
+    private static final ReadMode READ_MODE = PropertyUtil.getEnum(
+        "dsync.hash.readMode", ReadMode.class, ReadMode.DIRECT);
+
+    private static final int HASH_THREADS = PropertyUtil.getInt(
+        "dsync.hash.threads", Runtime.getRuntime().availableProcessors(), 1, 256);
+
+    private final ReadMode readMode;
+    private final ForkJoinPool pool;
+
+    private final ThreadLocal<ByteBuffer> directBuffers = ThreadLocal.withInitial(
+        () -> ByteBuffer.allocateDirect(ContentHashUtil.BLOCK_SIZE));
+
+    public ContentHashService() {
+        this(READ_MODE, HASH_THREADS);
+    }
+
+    public ContentHashService(final ReadMode readMode, final int threads) {
+        this.readMode = readMode;
+
+        final AtomicInteger threadNumber = new AtomicInteger();
+        this.pool = new ForkJoinPool(threads, forkJoinPool -> {
+            final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory
+                .newThread(forkJoinPool);
+            thread.setName("content-hash-" + threadNumber.getAndIncrement());
+            return thread;
+        }, (thread, ex) -> LOG.error("Failed in content hashing", ex), false);
+
+        LOG.debug("Content hashing uses {} mode on {} threads", () -> readMode, () -> threads);
+    }
+
+    /**
+     * Calculates content hash of the file.
+     *
+     * @param file
+     *            file to hash
+     * @return content hash as lower case hex string
+     * @throws IOException
+     *             if file can't be read
+     */
+    public String hash(final Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if (readMode == ReadMode.STREAM || size <= ContentHashUtil.BLOCK_SIZE) {
+                return ContentHashUtil.hash(file);
+            }
+
+            final byte[][] blockHashes = new byte[blockCount(size)][];
+            try {
+                pool.invoke(new BlockHashTask(channel, size, blockHashes, 0, blockHashes.length));
+            } catch (final UncheckedIOException ex) {
+                throw ex.getCause();
+            }
+            return ContentHashUtil.combine(blockHashes);
+        }
+    }
+
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    private static int blockCount(final long size) {
+        return (int) ((size + ContentHashUtil.BLOCK_SIZE - 1) / ContentHashUtil.BLOCK_SIZE);
+    }
+
+    private byte[] hashBlock(final FileChannel channel, final long size, final int block) throws IOException {
+        final long position = (long) block * ContentHashUtil.BLOCK_SIZE;
+        final int length = (int) Math.min(ContentHashUtil.BLOCK_SIZE, size - position);
+
+        if (readMode == ReadMode.MMAP) {
+            return ContentHashUtil.hashBlock(channel.map(MapMode.READ_ONLY, position, length));
+        } else {
+            final ByteBuffer buffer = directBuffers.get();
+            buffer.clear().limit(length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("File was truncated while hashing");
+                }
+            }
+            buffer.flip();
+            return ContentHashUtil.hashBlock(buffer);
+        }
+    }
+
+    /**
+     * Splits range of blocks in halves until one block is left and hashes it.
+     */
+    @SuppressFBWarnings(value = {"SE_BAD_FIELD_INNER_CLASS", "SE_TRANSIENT_FIELD_NOT_RESTORED"},
+        justification = "Tasks are never serialized")
+    private final class BlockHashTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final transient FileChannel channel;
+        private final long size;
+        private final byte[][] blockHashes;
+        private final int from;
+        private final int to;
+
+        @SuppressWarnings("PMD.ArrayIsStoredDirectly")
+        BlockHashTask(final FileChannel channel, final long size, final byte[][] blockHashes,
+                      final int from, final int to) {
+            super();
+            this.channel = channel;
+            this.size = size;
+            this.blockHashes = blockHashes;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                try {
+                    blockHashes[from] = hashBlock(channel, size, from);
+                } catch (final IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            } else {
+                final int middle = (from + to) >>> 1;
+                invokeAll(new BlockHashTask(channel, size, blockHashes, from, middle),
+                    new BlockHashTask(channel, size, blockHashes, middle, to));
+            }
+        }
+    }
+
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.yet.dsync.service;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.yet.dsync.util.PropertyUtil;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Flushes downloaded files to the storage device according to configured
+ * policy. By default nothing is flushed and the operating system writes
+ * the data when it decides to.
+ */
+class DownloadFsync {
+
+    /**
+     * When downloaded files are flushed.
+     */
+    enum Policy {
+        /** Files are not flushed */
+        NONE,
+        /** Each file is flushed before it is moved in place */
+        FILE,
+        /** Files that were moved in place are flushed together periodically */
+        BATCH
+    }
+
+    private static final Logger LOG = LogManager.getLogger(DownloadFsync.class);
+
+    private static final Policy POLICY = PropertyUtil.getEnum(
+        "dsync.download.fsync", Policy.class, Policy.NONE);
+
+    private static final long BATCH_INTERVAL_MS = PropertyUtil.getLong(
+        "dsync.download.fsyncIntervalMillis", 1000, 10, TimeUnit.MINUTES.toMillis(10));
+
+    private final Policy policy;
+
+    private final Set<Path> pendingFiles = ConcurrentHashMap.newKeySet();
+
+    DownloadFsync() {
+        this.policy = POLICY;
+
+        if (policy == Policy.BATCH) {
+            final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("download-fsync-%d").setDaemon(true).build());
+            scheduler.scheduleWithFixedDelay(this::flushPending, BATCH_INTERVAL_MS, BATCH_INTERVAL_MS,
+                TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Called when temporary file is complete and is about to be moved in
+     * place of the target.
+     *
+     * @param tempFile
+     *            completely downloaded temporary file
+     * @throws IOException
+     *             if file can't be flushed
+     */
+    public void beforeMove(final Path tempFile) throws IOException {
+        if (policy == Policy.FILE) {
+            force(tempFile);
+        }
+    }
+
+    /**
+     * Called when downloaded file was moved in place of the target.
+     *
+     * @param target
+     *            downloaded file
+     */
+    public void afterMove(final Path target) {
+        if (policy == Policy.BATCH) {
+            pendingFiles.add(target);
+        }
+    }
+
+    private void flushPending() {
+        final List<Path> files = new ArrayList<>(pendingFiles);
+        pendingFiles.removeAll(files);
+
+        for (final Path file : files) {
+            try {
+                force(file);
+            } catch (final NoSuchFileException ex) {
+                LOG.trace("File is already removed {}", () -> file);
+            } catch (final IOException ex) {
+                LOG.warn("Failed to flush " + file, ex);
+            }
+        }
+        if (!files.isEmpty()) {
+            LOG.trace("Flushed {} downloaded files", files::size);
+        }
+    }
+
+    private static void force(final Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+}
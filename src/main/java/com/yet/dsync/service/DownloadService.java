@@ -14,21 +14,25 @@
 
 package com.yet.dsync.service;
 
-import com.yet.dsync.dao.MetadataDao;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.yet.dsync.dao.MetadataStore;
+import com.yet.dsync.dao.PendingDeleteDao;
 import com.yet.dsync.dto.DropboxChangeType;
 import com.yet.dsync.dto.DropboxFileData;
-import com.yet.dsync.exception.DSyncClientException;
+import com.yet.dsync.util.PropertyUtil;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.util.Collection;
 import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class DownloadService
     extends AbstractChangeProcessingService<DropboxFileData> {
@@ -36,19 +40,40 @@ public class DownloadService
     private static final Logger LOG = LogManager
         .getLogger(DownloadService.class);
 
-    private final MetadataDao metadataDao;
+    /* Number of not loaded entries read from database at once */
+    private static final int NOT_LOADED_PAGE_SIZE = PropertyUtil.getInt("dsync.download.notLoadedPageSize",
+        500, 1, 100_000);
+
+    /* Files up to this size are downloaded during initial sync, as soon as they are listed */
+    private static final long EARLY_DOWNLOAD_MAX_SIZE = PropertyUtil.getLong("dsync.download.earlyMaxSize",
+        256 * 1024, 0, Long.MAX_VALUE);
+
+    private final MetadataStore metadataStore;
+    private final PendingDeleteDao pendingDeleteDao;
     private final LocalFolderService localFolderService;
-    private final DropboxService dropboxService;
+    private final LocalStateService localStateService;
+    private final FileDownloader fileDownloader;
+    private final LocalDuplicateCopier localDuplicateCopier;
+
+    /* Entries scheduled by downloadListed and not processed yet, skipped by replay */
+    private final Set<String> earlyScheduledIds = ConcurrentHashMap.newKeySet();
 
     public DownloadService(final GlobalOperationsTracker globalOperationsTracker,
-                           final MetadataDao metadaDao,
+                           final MetadataStore metadataStore,
+                           final PendingDeleteDao pendingDeleteDao,
                            final LocalFolderService localFolderService,
-                           final DropboxService dropboxService) {
+                           final DropboxService dropboxService,
+                           final ContentHashService contentHashService,
+                           final LocalStateService localStateService) {
         super("download", globalOperationsTracker);
 
-        this.metadataDao = metadaDao;
+        this.metadataStore = metadataStore;
+        this.pendingDeleteDao = pendingDeleteDao;
         this.localFolderService = localFolderService;
-        this.dropboxService = dropboxService;
+        this.localStateService = localStateService;
+        this.fileDownloader = new FileDownloader(dropboxService, contentHashService);
+        this.localDuplicateCopier = new LocalDuplicateCopier(metadataStore, localStateService, localFolderService,
+            fileDownloader);
     }
 
     private void downloadData(final DropboxFileData fileData) {
@@ -61,14 +86,16 @@ public class DownloadService
             } else {
                 final File file = resolveFile(fileData);
 
-                if (file.getParentFile().exists()) {
-                    try (OutputStream fos = new BufferedOutputStream(new FileOutputStream(file))) {
-                        dropboxService.downloadFile(fileData.getPathDisplay(), fos);
-                        metadataDao.writeLoadedFlag(fileData.getId());
-                    } catch (final IOException ex) {
-                        throw new DSyncClientException(ex);
+                if (isSameContent(fileData, file)) {
+                    metadataStore.writeLoadedFlag(fileData.getId());
+                    LOG.info("Content is not changed. Skipped download of {}", fileData::getPathDisplay);
+                } else if (file.getParentFile().exists()) {
+                    if (!localDuplicateCopier.copy(fileData, file.toPath())) {
+                        fileDownloader.download(fileData, file.toPath());
+                        LOG.info("Downloaded {}", fileData::getPathDisplay);
                     }
-                    LOG.info("Downloaded {}", fileData::getPathDisplay);
+                    localStateService.record(file.toPath(), fileData.getPathDisplay(), fileData.getContentHash());
+                    metadataStore.writeLoadedFlag(fileData.getId());
                 } else {
                     LOG.warn("Skipped {}", fileData::getPathDisplay);
                 }
@@ -78,15 +105,36 @@ public class DownloadService
         }
     }
 
+    /**
+     * Checking if local file already has the content of the file in Dropbox.
+     * Content hash is calculated only if size of the file is the same.
+     */
+    private boolean isSameContent(final DropboxFileData fileData, final File file) {
+        if (fileData.getContentHash() == null || fileData.getSize() == null
+                || !file.isFile() || file.length() != fileData.getSize()) {
+            return false;
+        }
+
+        try {
+            return fileData.getContentHash()
+                .equals(localStateService.contentHash(file.toPath(), fileData.getPathDisplay()));
+        } catch (final IOException ex) {
+            LOG.warn("Failed to calculate content hash of " + file, ex);
+            return false;
+        }
+    }
+
     private void deleteFileOrDirectory(final DropboxFileData fd) {
         localFolderService.deleteFileOrFolder(fd.getPathDisplay());
-        metadataDao.deleteByLowerPath(fd.getPathLower());
+        metadataStore.deleteTreeByLowerPath(fd.getPathLower());
+        localStateService.remove(fd.getPathDisplay());
+        pendingDeleteDao.delete(fd.getPathLower());
         LOG.info("Removed {}", fd::getPathDisplay);
     }
 
     private void createDirectory(final DropboxFileData fileData) {
         localFolderService.createFolder(fileData.getPathDisplay());
-        metadataDao.writeLoadedFlag(fileData.getId());
+        metadataStore.writeLoadedFlag(fileData.getId());
 
         LOG.info("Created directory {}", fileData::getPathDisplay);
     }
@@ -103,7 +151,7 @@ public class DownloadService
         if (dir.exists()) {
             fullFilePath = dir.getAbsolutePath() + File.separator + fileName;
         } else {
-            final DropboxFileData dirData = metadataDao
+            final DropboxFileData dirData = metadataStore
                 .readByLowerPath(fileDir.toLowerCase(Locale.getDefault()));
             if (dirData == null) {
                 fullFilePath = dir.getAbsolutePath() + File.separator
@@ -115,7 +163,7 @@ public class DownloadService
                 final DropboxFileData newFileData = fileData.toBuilder()
                     .pathDisplay(fileDisplayPath)
                     .build();
-                metadataDao.write(newFileData);
+                metadataStore.write(newFileData);
 
                 fullFilePath = localFolderService
                     .buildFileObject(fileDisplayPath).getAbsolutePath();
@@ -125,16 +173,93 @@ public class DownloadService
         return new File(fullFilePath);
     }
 
+    /**
+     * Scheduling download of all entries that are not loaded yet. Entries
+     * are read page by page in background and scheduled only as processing
+     * queues drain, so memory doesn't depend on the size of the backlog.
+     */
+    @SuppressFBWarnings(value = "RV_RETURN_VALUE_IGNORED_BAD_PRACTICE",
+        justification = "Replay reports its own failures")
     public void downloadAllNotLoaded() {
-        final Collection<DropboxFileData> allNotLoaded = metadataDao.readAllNotLoaded();
-        LOG.debug("Downloading {} objects that are not loaded..",
-            allNotLoaded::size);
-        allNotLoaded.forEach(this::scheduleProcessing);
+        final ExecutorService replayExecutor = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("download-replay-%d").setDaemon(true).build());
+        replayExecutor.submit(this::replayNotLoaded);
+        replayExecutor.shutdown();
+    }
+
+    /**
+     * Scheduling download of folders and small files that were just listed and
+     * written during initial sync, so downloading doesn't wait for the whole
+     * listing. Entries are scheduled only while processing queues have room,
+     * and paths that are tracked by other operation are skipped. The rest is
+     * picked up by {@link #downloadAllNotLoaded()}.
+     *
+     * @param fileDataCollection
+     *            entries of the listed page, already written to metadata store
+     */
+    public void downloadListed(final Collection<DropboxFileData> fileDataCollection) {
+        for (final DropboxFileData fileData : fileDataCollection) {
+            if (isEarlyDownload(fileData)) {
+                earlyScheduledIds.add(fileData.getId());
+                if (!offerProcessing(fileData)) {
+                    earlyScheduledIds.remove(fileData.getId());
+                    if (getGlobalOperationsTracker().isTracked(fileData.getPathLower())) {
+                        continue;
+                    }
+                    break;
+                }
+            }
+        }
+    }
+
+    private boolean isEarlyDownload(final DropboxFileData fileData) {
+        return fileData.isDirectory()
+            || fileData.isFile() && fileData.getSize() != null && fileData.getSize() <= EARLY_DOWNLOAD_MAX_SIZE;
+    }
+
+    private void replayNotLoaded() {
+        LOG.debug("Downloading objects that are not loaded..");
+        long count = 0;
+        DropboxFileData last = null;
+        Collection<DropboxFileData> page;
+        try {
+            do {
+                page = metadataStore.readNotLoadedPage(last, NOT_LOADED_PAGE_SIZE);
+                for (final DropboxFileData fileData : page) {
+                    if (!earlyScheduledIds.contains(fileData.getId())) {
+                        scheduleProcessingBounded(fileData);
+                    }
+                    last = fileData;
+                }
+                count += page.size();
+            } while (page.size() == NOT_LOADED_PAGE_SIZE);
+            LOG.debug("Scheduled {} objects that were not loaded", count);
+        } catch (final InterruptedException ex) {
+            LOG.warn("Interrupted scheduling of not loaded objects");
+            Thread.currentThread().interrupt();
+        } catch (final RuntimeException ex) {
+            LOG.error("Failed to schedule not loaded objects", ex);
+        }
     }
 
     @Override
     protected void processChange(final DropboxFileData changeData) {
-        downloadData(changeData);
+        try {
+            downloadData(changeData);
+        } finally {
+            earlyScheduledIds.remove(changeData.getId());
+        }
+    }
+
+    /**
+     * Delete of tracked path is skipped, as the path is being changed by the
+     * client itself, so it stops being pending.
+     */
+    @Override
+    protected void skipChange(final DropboxFileData changeData) {
+        if (DropboxChangeType.DELETE == changeData.getChangeType()) {
+            pendingDeleteDao.delete(changeData.getPathLower());
+        }
     }
 
     @Override
@@ -21,6 +21,24 @@ import java.util.Set;
 @FunctionalInterface
 public interface DropboxChange {
 
-    void processChange(Set<DropboxFileData> data);
+    /**
+     * Processing one listed page of changes.
+     *
+     * @param data
+     *            changes of the page
+     * @param checkpoint
+     *            saves position after the page, so it is not listed again.
+     *            Must run in the same transaction that persists the changes,
+     *            so after crash either both or none of them are saved.
+     */
+    void processChange(Set<DropboxFileData> data, Runnable checkpoint);
+
+    /**
+     * Called when the last page of changes was processed, i.e. there are no
+     * more changes to list at the moment.
+     */
+    default void processChangesListed() {
+        // nothing to do by default
+    }
 
 }
@@ -52,17 +52,19 @@ public class DropboxPolling implements Runnable {
 
             while (!Thread.interrupted()) {
                 cursor = listFolderResult.getCursor();
-                saveCursor(cursor);
 
                 final Set<DropboxFileData> fileDataSet = listFolderResult.getEntries().stream()
                     .map(DropboxUtil::convertMetadata)
                     .collect(Collectors.toSet());
 
-                changeListener.processChange(fileDataSet);
+                final String pageCursor = cursor;
+                changeListener.processChange(fileDataSet, () -> saveCursor(pageCursor));
 
                 if (listFolderResult.getHasMore()) {
                     listFolderResult = client.files().listFolderContinue(cursor);
                 } else {
+                    changeListener.processChangesListed();
+
                     boolean changes = false;
 
                     while (!changes) {
@@ -24,26 +24,41 @@ import com.dropbox.core.DbxWebAuth;
 import com.dropbox.core.DbxWebAuth.Request;
 import com.dropbox.core.v2.DbxClientV2;
 import com.dropbox.core.v2.files.CommitInfo;
+import com.dropbox.core.v2.files.CreateFolderBatchJobStatus;
+import com.dropbox.core.v2.files.CreateFolderBatchLaunch;
+import com.dropbox.core.v2.files.DeleteArg;
+import com.dropbox.core.v2.files.DeleteBatchJobStatus;
+import com.dropbox.core.v2.files.DeleteBatchLaunch;
 import com.dropbox.core.v2.files.DeleteErrorException;
+import com.dropbox.core.v2.files.DownloadBuilder;
 import com.dropbox.core.v2.files.FileMetadata;
 import com.dropbox.core.v2.files.ListFolderGetLatestCursorResult;
 import com.dropbox.core.v2.files.ListFolderResult;
 import com.dropbox.core.v2.files.Metadata;
+import com.dropbox.core.v2.files.RelocationResult;
 import com.dropbox.core.v2.files.UploadBuilder;
 import com.dropbox.core.v2.files.UploadSessionAppendV2Uploader;
 import com.dropbox.core.v2.files.UploadSessionCursor;
+import com.dropbox.core.v2.files.UploadSessionFinishArg;
+import com.dropbox.core.v2.files.UploadSessionFinishBatchJobStatus;
+import com.dropbox.core.v2.files.UploadSessionFinishBatchLaunch;
+import com.dropbox.core.v2.files.UploadSessionFinishErrorException;
 import com.dropbox.core.v2.files.UploadSessionFinishUploader;
-import com.dropbox.core.v2.files.UploadSessionStartResult;
+import com.dropbox.core.v2.files.UploadSessionLookupError;
+import com.dropbox.core.v2.files.UploadSessionLookupErrorException;
 import com.dropbox.core.v2.files.UploadSessionStartUploader;
 import com.dropbox.core.v2.files.WriteMode;
 import com.dropbox.core.v2.users.FullAccount;
 import com.dropbox.core.v2.users.SpaceUsage;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.yet.dsync.dao.ConfigDao;
 import com.yet.dsync.dto.DropboxFileData;
+import com.yet.dsync.dto.UploadSessionData;
 import com.yet.dsync.dto.UserData;
 import com.yet.dsync.exception.DSyncClientException;
 import com.yet.dsync.util.Config;
 import com.yet.dsync.util.DropboxUtil;
+import com.yet.dsync.util.PropertyUtil;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import lombok.RequiredArgsConstructor;
 import org.apache.commons.lang3.StringUtils;
@@ -51,15 +66,27 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
+import java.io.InterruptedIOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 import java.util.stream.Collectors;
 
 @RequiredArgsConstructor
@@ -68,10 +95,22 @@ public class DropboxService {
     private static final Logger LOG = LogManager.getLogger(DropboxService.class);
 
     /* According to API, can't upload chunks/files more than 150MB */
-    private static final long MAX_FILE_UPLOAD_CHUNK = 150 * 1024 * 1024;
+    private static final int MAX_FILE_UPLOAD_CHUNK = 150 * 1024 * 1024;
+    private static final int MIN_FILE_UPLOAD_CHUNK = 4 * 1024 * 1024;
+    private static final int DEFAULT_FILE_UPLOAD_CHUNK = 32 * 1024 * 1024;
+
+    /* How many chunks of one file can be read ahead while previous one is uploading */
+    private static final int UPLOAD_READ_AHEAD_CHUNKS = PropertyUtil.getInt(
+            "dsync.upload.readAhead", 2, 1, 8);
+
+    /* How many chunks can be uploaded at the same time for all files */
+    private static final int MAX_CONCURRENT_CHUNK_TRANSFERS = PropertyUtil.getInt(
+            "dsync.upload.maxConcurrentChunks", 4, 1, 64);
 
     private static final int MAX_RETRIES = 3;
 
+    private static final int MAX_RESUME_ATTEMPTS = 2;
+
     private static final int STATUS_IO_ERROR = -1;
     private static final int STATUS_DBX_ERROR = -2;
 
@@ -79,6 +118,14 @@ public class DropboxService {
     private DbxRequestConfig config;
     private final ConfigDao configDao;
 
+    private final int uploadChunkSize = PropertyUtil.getInt("dsync.upload.chunkSize", DEFAULT_FILE_UPLOAD_CHUNK,
+            MIN_FILE_UPLOAD_CHUNK, MAX_FILE_UPLOAD_CHUNK) / MIN_FILE_UPLOAD_CHUNK * MIN_FILE_UPLOAD_CHUNK;
+
+    private final Semaphore chunkTransferPermits = new Semaphore(MAX_CONCURRENT_CHUNK_TRANSFERS, true);
+
+    private final ExecutorService uploadReadExecutor = Executors.newFixedThreadPool(
+            MAX_CONCURRENT_CHUNK_TRANSFERS, new ThreadFactoryBuilder().setNameFormat("upload-read-%d").build());
+
     private String appKeyFromProvider = "YOUR_APP_KEY";
 
     private String appSecretFromProvider = "YOUR_APP_SECRET";
@@ -189,54 +236,82 @@ public class DropboxService {
         return new DropboxPolling(client, configDao, changeListener);
     }
 
+    /**
+     * Listing the whole account page by page. Next page is requested in
+     * background while the listener processes the current one.
+     */
     public Runnable createInitialSyncThread(final DropboxChange changeListener) {
         return () -> {
+            final ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor(
+                    new ThreadFactoryBuilder().setNameFormat("list-prefetch-%d").setDaemon(true).build());
             try {
-                String cursor = configDao.read(Config.CURSOR);
-                ListFolderResult listFolderResult = null;
+                final String cursor = configDao.read(Config.CURSOR);
+                ListFolderResult listFolderResult;
 
                 if (cursor.isEmpty()) {
                     listFolderResult = client.files()
                             .listFolderBuilder(StringUtils.EMPTY)
                             .withRecursive(Boolean.TRUE).start();
-
-                    final Set<DropboxFileData> fileDataSet = listFolderResult.getEntries().stream()
-                            .map(DropboxUtil::convertMetadata)
-                            .collect(Collectors.toSet());
-
-                    changeListener.processChange(fileDataSet);
-
-                    cursor = listFolderResult.getCursor();
-                    configDao.write(Config.CURSOR, cursor);
+                } else {
+                    listFolderResult = client.files().listFolderContinue(cursor);
                 }
 
-                while (listFolderResult == null || listFolderResult.getHasMore()) {
-                    listFolderResult = client.files().listFolderContinue(cursor);
+                while (listFolderResult != null) {
+                    final String pageCursor = listFolderResult.getCursor();
+                    final Future<ListFolderResult> nextPage = listFolderResult.getHasMore()
+                            ? prefetchExecutor.submit(() -> client.files().listFolderContinue(pageCursor))
+                            : null;
 
                     final Set<DropboxFileData> fileDataSet = listFolderResult.getEntries().stream()
                             .map(DropboxUtil::convertMetadata)
                             .collect(Collectors.toSet());
 
-                    changeListener.processChange(fileDataSet);
+                    changeListener.processChange(fileDataSet, saveCursor(pageCursor));
 
-                    cursor = listFolderResult.getCursor();
-                    configDao.write(Config.CURSOR, cursor);
+                    listFolderResult = nextPage == null ? null : nextPage.get();
                 }
 
             } catch (final Exception ex) {
                 LOG.error("Failed in initial sync", ex);
+            } finally {
+                prefetchExecutor.shutdownNow();
             }
         };
     }
 
-    public void downloadFile(final String path, final OutputStream outputStream) {
-        try {
-            final DbxDownloader<FileMetadata> downloader = client.files().download(path);
+    private Runnable saveCursor(final String cursor) {
+        return () -> configDao.write(Config.CURSOR, cursor);
+    }
 
-            downloader.download(outputStream);
-        } catch (final Exception ex) {
-            LOG.error("Failed to download from Dropbox: " + path, ex);
-            throw new DSyncClientException(ex);
+    /**
+     * Starts download of the given file revision from the offset. Content
+     * should be read from the input stream of returned downloader, which must
+     * be closed afterwards.
+     *
+     * @param path
+     *            path of the file on Dropbox
+     * @param rev
+     *            revision to download
+     * @param offset
+     *            position of the first byte to download
+     * @param length
+     *            number of bytes to download or zero to download till the end
+     * @return downloader with the response stream
+     * @throws IOException
+     *             if download failed to start
+     */
+    public DbxDownloader<FileMetadata> openDownload(final String path, final String rev,
+                                                    final long offset, final long length) throws IOException {
+        final DownloadBuilder builder = client.files().downloadBuilder(path).withRev(rev);
+        if (length > 0) {
+            builder.range(offset, length);
+        } else if (offset > 0) {
+            builder.range(offset);
+        }
+        try {
+            return builder.start();
+        } catch (final DbxException ex) {
+            throw new IOException("Failed to download " + path + " from offset " + offset, ex);
         }
     }
 
@@ -266,59 +341,89 @@ public class DropboxService {
         }
     }
 
+    public DropboxFileData getMetadata(final String dropboxPath) {
+        try {
+            return DropboxUtil.convertMetadata(client.files().getMetadata(dropboxPath));
+        } catch (final DbxException ex) {
+            LOG.error("Failed to get metadata from Dropbox: " + dropboxPath, ex);
+            throw new DSyncClientException(ex);
+        }
+    }
+
+    public DropboxFileData move(final String fromPath, final String toPath) {
+        try {
+            final RelocationResult result = client.files().moveV2(fromPath, toPath);
+            return DropboxUtil.convertMetadata(result.getMetadata());
+        } catch (final DbxException ex) {
+            LOG.error("Failed to move in Dropbox from " + fromPath + " to " + toPath, ex);
+            throw new DSyncClientException(ex);
+        }
+    }
+
+    public CreateFolderBatchLaunch createFolderBatch(final List<String> dropboxPaths) {
+        try {
+            return client.files().createFolderBatch(dropboxPaths);
+        } catch (final DbxException ex) {
+            LOG.error("Failed to create batch of " + dropboxPaths.size() + " folders", ex);
+            throw new DSyncClientException(ex);
+        }
+    }
+
+    public CreateFolderBatchJobStatus checkCreateFolderBatch(final String asyncJobId) {
+        try {
+            return client.files().createFolderBatchCheck(asyncJobId);
+        } catch (final DbxException ex) {
+            LOG.error("Failed to check create folder batch job " + asyncJobId, ex);
+            throw new DSyncClientException(ex);
+        }
+    }
+
+    /**
+     * Uploads file to Dropbox. Files that fit in one chunk are uploaded in
+     * single call. Bigger files are uploaded in upload session chunk by chunk.
+     * Upload session appends must go in order, so the chunks of one file are
+     * sent sequentially, but the next chunks are read from disk while the
+     * current one is being sent. The number of chunk transfers that run at
+     * the same time for all files is limited, so big files share the network
+     * fairly.
+     *
+     * If <code>resumeSession</code> is specified, then upload continues in
+     * that session from its offset. If the session can't be used any more,
+     * then the new one is started.
+     *
+     * The <code>progressListener</code> is notified after each chunk that
+     * was appended to the session.
+     */
     public DropboxFileData uploadFile(final String dropboxPath,
-                                      final InputStream inputStream,
-                                      final long size,
+                                      final File file,
                                       final Date lastModified,
-                                      final boolean override) {
-        try {
+                                      final boolean override,
+                                      final UploadSessionData resumeSession,
+                                      final UploadProgressListener progressListener) {
+        final WriteMode writeMode = override ? WriteMode.OVERWRITE : WriteMode.ADD;
+        final Boolean autoRename = override ? Boolean.FALSE : Boolean.TRUE;
 
-            final Metadata metadata;
+        final CommitInfo commitInfo = CommitInfo.newBuilder(dropboxPath)
+                .withMode(writeMode)
+                .withAutorename(autoRename)
+                .withClientModified(lastModified)
+                .build();
 
-            int chunks = (int) (size / MAX_FILE_UPLOAD_CHUNK);
-            if (chunks * MAX_FILE_UPLOAD_CHUNK <= size) {
-                chunks += 1;
-            }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
 
-            final WriteMode writeMode = override ? WriteMode.OVERWRITE : WriteMode.ADD;
-            final Boolean autoRename = override ? Boolean.FALSE : Boolean.TRUE;
+            final long size = channel.size();
+            final Metadata metadata;
 
-            if (chunks == 1) {
-                LOG.debug("File size is smaller than MAX. Uploading in single call ({})", () -> dropboxPath);
+            if (size <= uploadChunkSize) {
+                LOG.debug("File size is smaller than chunk. Uploading in single call ({})", () -> dropboxPath);
                 final UploadBuilder uploadBuilder = client.files().uploadBuilder(dropboxPath);
                 uploadBuilder.withClientModified(lastModified);
                 uploadBuilder.withMode(writeMode);
                 uploadBuilder.withAutorename(autoRename);
-                metadata = uploadBuilder.uploadAndFinish(inputStream);
+                metadata = uploadBuilder.uploadAndFinish(Channels.newInputStream(channel));
 
             } else {
-                LOG.debug("Chunk upload (1 of {}) for {}", chunks, dropboxPath);
-                final UploadSessionStartUploader startUploader = client.files().uploadSessionStart();
-                final UploadSessionStartResult startResult = startUploader
-                        .uploadAndFinish(inputStream, MAX_FILE_UPLOAD_CHUNK);
-                int chunksUploaded = 1;
-
-                final String sessionId = startResult.getSessionId();
-
-                while (chunksUploaded < (chunks - 1)) {
-                    LOG.debug("Chunk upload ({} of {}) for {}", chunksUploaded + 1, chunks, dropboxPath);
-                    final UploadSessionCursor cursor = new UploadSessionCursor(
-                            sessionId, chunksUploaded * MAX_FILE_UPLOAD_CHUNK);
-                    final UploadSessionAppendV2Uploader appendUploader = client.files()
-                            .uploadSessionAppendV2(cursor);
-                    appendUploader.uploadAndFinish(inputStream, MAX_FILE_UPLOAD_CHUNK);
-                    chunksUploaded++;
-                }
-
-                LOG.debug("Chunk upload ({} of {}) for {}", chunksUploaded + 1, chunks, dropboxPath);
-                final UploadSessionCursor cursor = new UploadSessionCursor(
-                        sessionId, chunksUploaded * MAX_FILE_UPLOAD_CHUNK);
-                final CommitInfo commitInfo = new CommitInfo(dropboxPath, writeMode,
-                        autoRename, lastModified, false);
-                final UploadSessionFinishUploader finishUploader = client.files()
-                        .uploadSessionFinish(cursor, commitInfo);
-                metadata = finishUploader.uploadAndFinish(inputStream);
-
+                metadata = uploadInChunks(channel, size, commitInfo, resumeSession, progressListener);
                 LOG.debug("Upload completed for {}", () -> dropboxPath);
             }
 
@@ -330,4 +435,216 @@ public class DropboxService {
         }
     }
 
+    /**
+     * Uploads the whole file in one upload session and closes the session.
+     * The file is not committed. Returned argument should be committed with
+     * {@link #finishUploadBatch(List)} together with other files.
+     */
+    public UploadSessionFinishArg uploadForBatch(final String dropboxPath,
+                                                 final File file,
+                                                 final Date lastModified,
+                                                 final boolean override) {
+        final CommitInfo commitInfo = CommitInfo.newBuilder(dropboxPath)
+                .withMode(override ? WriteMode.OVERWRITE : WriteMode.ADD)
+                .withAutorename(!override)
+                .withClientModified(lastModified)
+                .build();
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+             UploadSessionStartUploader uploader = client.files().uploadSessionStart(true)) {
+
+            final long size = channel.size();
+            final String sessionId = uploader.uploadAndFinish(Channels.newInputStream(channel), size)
+                    .getSessionId();
+            LOG.debug("Uploaded in closed session for batch commit ({})", () -> dropboxPath);
+
+            return new UploadSessionFinishArg(new UploadSessionCursor(sessionId, size), commitInfo);
+
+        } catch (final DbxException | IOException ex) {
+            LOG.error("Failed to upload file to Dropbox: " + dropboxPath, ex);
+            throw new DSyncClientException(ex);
+        }
+    }
+
+    public UploadSessionFinishBatchLaunch finishUploadBatch(final List<UploadSessionFinishArg> entries) {
+        try {
+            return client.files().uploadSessionFinishBatch(entries);
+        } catch (final DbxException ex) {
+            LOG.error("Failed to commit upload batch of " + entries.size() + " files", ex);
+            throw new DSyncClientException(ex);
+        }
+    }
+
+    public DeleteBatchLaunch deleteBatch(final List<String> dropboxPaths) {
+        final List<DeleteArg> entries = new ArrayList<>(dropboxPaths.size());
+        for (final String dropboxPath : dropboxPaths) {
+            entries.add(new DeleteArg(dropboxPath));
+        }
+        try {
+            return client.files().deleteBatch(entries);
+        } catch (final DbxException ex) {
+            LOG.error("Failed to delete batch of " + entries.size() + " paths", ex);
+            throw new DSyncClientException(ex);
+        }
+    }
+
+    public DeleteBatchJobStatus checkDeleteBatch(final String asyncJobId) {
+        try {
+            return client.files().deleteBatchCheck(asyncJobId);
+        } catch (final DbxException ex) {
+            LOG.error("Failed to check delete batch job " + asyncJobId, ex);
+            throw new DSyncClientException(ex);
+        }
+    }
+
+    public UploadSessionFinishBatchJobStatus checkUploadBatch(final String asyncJobId) {
+        try {
+            return client.files().uploadSessionFinishBatchCheck(asyncJobId);
+        } catch (final DbxException ex) {
+            LOG.error("Failed to check upload batch job " + asyncJobId, ex);
+            throw new DSyncClientException(ex);
+        }
+    }
+
+    private Metadata uploadInChunks(final FileChannel channel, final long size,
+                                    final CommitInfo commitInfo,
+                                    final UploadSessionData resumeSession,
+                                    final UploadProgressListener progressListener)
+            throws DbxException, IOException {
+        if (resumeSession != null) {
+            final Metadata metadata = resumeUploadInChunks(channel, size, commitInfo,
+                    resumeSession, progressListener);
+            if (metadata != null) {
+                return metadata;
+            }
+        }
+
+        LOG.debug("Chunk upload (1 of {}) for {}", chunkCount(size), commitInfo.getPath());
+        final ByteBuffer firstChunk;
+        try (UploadChunkReader chunkReader = new UploadChunkReader(channel, 0, uploadChunkSize,
+                uploadChunkSize, 1, uploadReadExecutor)) {
+            firstChunk = chunkReader.next();
+        }
+
+        final String sessionId = transferChunk(() -> {
+            try (UploadSessionStartUploader uploader = client.files().uploadSessionStart()) {
+                return uploader.uploadAndFinish(toInputStream(firstChunk));
+            }
+        }).getSessionId();
+        progressListener.chunkUploaded(sessionId, firstChunk.limit());
+
+        return appendChunksAndFinish(channel, size, commitInfo, sessionId, firstChunk.limit(), progressListener);
+    }
+
+    /**
+     * Continues upload in existing session. If the server reports that it
+     * has received different number of bytes, then continuing from the
+     * offset the server expects.
+     *
+     * @return uploaded file metadata or null if session can't be resumed
+     */
+    private Metadata resumeUploadInChunks(final FileChannel channel, final long size,
+                                          final CommitInfo commitInfo,
+                                          final UploadSessionData resumeSession,
+                                          final UploadProgressListener progressListener)
+            throws DbxException, IOException {
+        final String dropboxPath = commitInfo.getPath();
+        long offset = resumeSession.getOffset();
+
+        for (int attempt = 0; attempt < MAX_RESUME_ATTEMPTS; attempt++) {
+            LOG.debug("Resuming upload session from offset {} for {}", offset, dropboxPath);
+
+            final UploadSessionLookupError lookupError;
+            try {
+                return appendChunksAndFinish(channel, size, commitInfo, resumeSession.getSessionId(),
+                        offset, progressListener);
+            } catch (final UploadSessionLookupErrorException ex) {
+                lookupError = ex.errorValue;
+            } catch (final UploadSessionFinishErrorException ex) {
+                if (!ex.errorValue.isLookupFailed()) {
+                    throw ex;
+                }
+                lookupError = ex.errorValue.getLookupFailedValue();
+            }
+
+            if (!lookupError.isIncorrectOffset()) {
+                LOG.info("Upload session can't be resumed ({}) for {}", lookupError.tag(), dropboxPath);
+                return null;
+            }
+            offset = lookupError.getIncorrectOffsetValue().getCorrectOffset();
+        }
+        return null;
+    }
+
+    private Metadata appendChunksAndFinish(final FileChannel channel, final long size,
+                                           final CommitInfo commitInfo,
+                                           final String sessionId, final long startOffset,
+                                           final UploadProgressListener progressListener)
+            throws DbxException, IOException {
+        final String dropboxPath = commitInfo.getPath();
+        final long chunks = chunkCount(size);
+
+        try (UploadChunkReader chunkReader = new UploadChunkReader(channel, startOffset, size,
+                uploadChunkSize, UPLOAD_READ_AHEAD_CHUNKS, uploadReadExecutor)) {
+
+            long offset = startOffset;
+            while (true) {
+                final ByteBuffer chunk = chunkReader.hasNext() ? chunkReader.next() : ByteBuffer.allocate(0);
+                final UploadSessionCursor cursor = new UploadSessionCursor(sessionId, offset);
+                LOG.debug("Chunk upload ({} of {}) for {}", offset / uploadChunkSize + 1, chunks, dropboxPath);
+
+                if (!chunkReader.hasNext()) {
+                    return transferChunk(() -> {
+                        try (UploadSessionFinishUploader uploader = client.files()
+                                .uploadSessionFinish(cursor, commitInfo)) {
+                            return uploader.uploadAndFinish(toInputStream(chunk));
+                        }
+                    });
+                }
+
+                transferChunk(() -> {
+                    try (UploadSessionAppendV2Uploader uploader = client.files().uploadSessionAppendV2(cursor)) {
+                        return uploader.uploadAndFinish(toInputStream(chunk));
+                    }
+                });
+                offset += chunk.limit();
+                progressListener.chunkUploaded(sessionId, offset);
+            }
+        }
+    }
+
+    private long chunkCount(final long size) {
+        return (size + uploadChunkSize - 1) / uploadChunkSize;
+    }
+
+    /**
+     * Runs the chunk transfer when one of the global chunk transfer permits
+     * is available. The semaphore is fair, so chunks of several big files
+     * are sent in turns.
+     */
+    private <R> R transferChunk(final ChunkTransfer<R> transfer) throws DbxException, IOException {
+        try {
+            chunkTransferPermits.acquire();
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw (InterruptedIOException) new InterruptedIOException("Interrupted while waiting for chunk transfer")
+                    .initCause(ex);
+        }
+        try {
+            return transfer.transfer();
+        } finally {
+            chunkTransferPermits.release();
+        }
+    }
+
+    private static InputStream toInputStream(final ByteBuffer buffer) {
+        return new ByteArrayInputStream(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                buffer.remaining());
+    }
+
+    @FunctionalInterface
+    private interface ChunkTransfer<R> {
+        R transfer() throws DbxException, IOException;
+    }
+
 }
@@ -0,0 +1,263 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.yet.dsync.service;
+
+import com.dropbox.core.DbxDownloader;
+import com.dropbox.core.v2.files.FileMetadata;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.yet.dsync.dto.DropboxFileData;
+import com.yet.dsync.exception.DSyncClientException;
+import com.yet.dsync.util.PathUtil;
+import com.yet.dsync.util.PropertyUtil;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Pattern;
+
+/**
+ * Downloads file content from Dropbox into local file. The content is staged
+ * in hidden temporary file next to the target, verified by size and content
+ * hash, and only then moved in place of the target.
+ */
+class FileDownloader {
+
+    private static final Logger LOG = LogManager.getLogger(FileDownloader.class);
+
+    private static final int MAX_DOWNLOAD_ATTEMPTS = 3;
+
+    /* Files bigger than this are downloaded over several connections */
+    private static final long RANGED_DOWNLOAD_THRESHOLD = PropertyUtil.getLong(
+        "dsync.download.rangedThreshold", 64 * 1024 * 1024, 0, Long.MAX_VALUE);
+
+    /* How many connections can be used to download one file */
+    private static final int CONNECTIONS_PER_FILE = PropertyUtil.getInt(
+        "dsync.download.connectionsPerFile", 4, 1, 16);
+
+    private static final long MIN_RANGE_SIZE = 8 * 1024 * 1024;
+
+    private static final String RANGED_TEMP_TAG = "-ranged";
+
+    /* Maximum number of bytes moved from response stream to file in one transfer call */
+    private static final long TRANSFER_WINDOW = PropertyUtil.getLong(
+        "dsync.download.transferWindow", 16 * 1024 * 1024, 64 * 1024, 1024 * 1024 * 1024);
+
+    private final DropboxService dropboxService;
+    private final ContentHashService contentHashService;
+    private final RangedDownload rangedDownload;
+    private final DownloadFsync downloadFsync = new DownloadFsync();
+
+    FileDownloader(final DropboxService dropboxService, final ContentHashService contentHashService) {
+        this.dropboxService = dropboxService;
+        this.contentHashService = contentHashService;
+
+        final ExecutorService rangeExecutor = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("download-range-%d").build());
+        this.rangedDownload = new RangedDownload(dropboxService, rangeExecutor,
+            CONNECTIONS_PER_FILE, MIN_RANGE_SIZE, MAX_DOWNLOAD_ATTEMPTS, TRANSFER_WINDOW);
+    }
+
+    /**
+     * Downloads the file and replaces the target with it.
+     *
+     * @param fileData
+     *            data of the file to download
+     * @param target
+     *            local file to create or replace
+     */
+    public void download(final DropboxFileData fileData, final Path target) {
+        if (isRangedDownload(fileData)) {
+            downloadInRanges(fileData, target);
+        } else {
+            downloadResumable(fileData, target);
+        }
+    }
+
+    /**
+     * Checking that downloaded file has the expected content hash. The file
+     * is removed if it doesn't.
+     */
+    void verifyContentHash(final DropboxFileData fileData, final Path tempFile) {
+        if (fileData.getContentHash() != null) {
+            final String downloadedHash;
+            try {
+                downloadedHash = contentHashService.hash(tempFile);
+            } catch (final IOException ex) {
+                throw new DSyncClientException(ex);
+            }
+            if (!fileData.getContentHash().equals(downloadedHash)) {
+                deleteTempFile(tempFile);
+                throw new DSyncClientException("Content hash mismatch for downloaded "
+                    + fileData.getPathDisplay());
+            }
+        }
+    }
+
+    /**
+     * Downloads file into hidden temporary file next to the target one. Name
+     * of the temporary file contains the revision, so download that was
+     * interrupted (even by restart) is continued from the current length of
+     * the temporary file. Only complete file is moved in place of the target.
+     *
+     * @param fileData
+     *            data of the file to download
+     * @param target
+     *            local file to create or replace
+     */
+    private void downloadResumable(final DropboxFileData fileData, final Path target) {
+        final Path tempFile = PathUtil.buildDownloadTempPath(target, fileData.getRev());
+        deleteStaleTempFiles(target, tempFile);
+
+        final Long expectedSize = fileData.getSize();
+        if (expectedSize == null) {
+            deleteTempFile(tempFile);
+        }
+
+        for (int attempt = 1;; attempt++) {
+            long offset = tempFile.toFile().length();
+            if (expectedSize != null && offset > expectedSize) {
+                LOG.warn("Partial download is bigger than file {}. Starting over", fileData::getPathDisplay);
+                deleteTempFile(tempFile);
+                offset = 0;
+            }
+
+            try {
+                if (expectedSize == null || offset < expectedSize || !tempFile.toFile().exists()) {
+                    downloadRange(fileData, tempFile, offset);
+                }
+                break;
+            } catch (final DSyncClientException ex) {
+                if (attempt >= MAX_DOWNLOAD_ATTEMPTS) {
+                    throw ex;
+                }
+                LOG.warn("Download of {} interrupted. Resuming (attempt {})",
+                    fileData.getPathDisplay(), attempt + 1);
+            }
+        }
+
+        final long downloadedSize = tempFile.toFile().length();
+        if (expectedSize != null && downloadedSize != expectedSize) {
+            deleteTempFile(tempFile);
+            throw new DSyncClientException("Downloaded " + downloadedSize + " bytes instead of "
+                + expectedSize + " for " + fileData.getPathDisplay());
+        }
+
+        verifyContentHash(fileData, tempFile);
+        moveInPlace(tempFile, target);
+    }
+
+    private boolean isRangedDownload(final DropboxFileData fileData) {
+        return CONNECTIONS_PER_FILE > 1 && fileData.getSize() != null
+            && fileData.getSize() > RANGED_DOWNLOAD_THRESHOLD
+            && fileData.getSize() >= 2 * MIN_RANGE_SIZE;
+    }
+
+    /**
+     * Downloads big file over several connections into preallocated temporary
+     * file. Ranges are resumed while the download is running, but the
+     * temporary file itself is not reused after failure, as there is no
+     * record of which of its parts were written.
+     *
+     * @param fileData
+     *            data of the file to download
+     * @param target
+     *            local file to create or replace
+     */
+    private void downloadInRanges(final DropboxFileData fileData, final Path target) {
+        final Path tempFile = PathUtil.buildDownloadTempPath(target, fileData.getRev() + RANGED_TEMP_TAG);
+        deleteStaleTempFiles(target, tempFile);
+
+        try {
+            rangedDownload.download(fileData, tempFile);
+        } catch (final IOException ex) {
+            deleteTempFile(tempFile);
+            throw new DSyncClientException(ex);
+        }
+
+        verifyContentHash(fileData, tempFile);
+        moveInPlace(tempFile, target);
+    }
+
+    private void downloadRange(final DropboxFileData fileData, final Path tempFile, final long offset) {
+        if (offset > 0) {
+            LOG.debug("Resuming download of {} from {} bytes", fileData::getPathDisplay, () -> offset);
+        }
+        try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             DbxDownloader<FileMetadata> downloader = dropboxService.openDownload(fileData.getPathDisplay(),
+                 fileData.getRev(), offset, 0);
+             ReadableByteChannel source = Channels.newChannel(downloader.getInputStream())) {
+            long position = offset;
+            long transferred;
+            do {
+                transferred = channel.transferFrom(source, position, TRANSFER_WINDOW);
+                position += transferred;
+            } while (transferred > 0);
+        } catch (final IOException ex) {
+            throw new DSyncClientException(ex);
+        }
+    }
+
+    void moveInPlace(final Path tempFile, final Path target) {
+        try {
+            downloadFsync.beforeMove(tempFile);
+            try {
+                Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            } catch (final AtomicMoveNotSupportedException ex) {
+                LOG.trace("Atomic move is not supported for {}", () -> target);
+                Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (final IOException ex) {
+            throw new DSyncClientException(ex);
+        }
+        downloadFsync.afterMove(target);
+    }
+
+    private void deleteStaleTempFiles(final Path target, final Path tempFile) {
+        final File dir = target.toFile().getAbsoluteFile().getParentFile();
+        if (dir == null) {
+            return;
+        }
+        final Pattern tempPattern = PathUtil.downloadTempPattern(target);
+        final File[] staleFiles = dir.listFiles((parent, name) ->
+            tempPattern.matcher(name).matches() && !name.equals(tempFile.getFileName().toString()));
+        if (staleFiles != null) {
+            for (final File staleFile : staleFiles) {
+                LOG.debug("Removing partial download of other revision {}", staleFile::getAbsolutePath);
+                deleteTempFile(staleFile.toPath());
+            }
+        }
+    }
+
+    void deleteTempFile(final Path tempFile) {
+        try {
+            Files.deleteIfExists(tempFile);
+        } catch (final IOException ex) {
+            throw new DSyncClientException(ex);
+        }
+    }
+
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.yet.dsync.service;
+
+import com.yet.dsync.dao.MetadataStore;
+import com.yet.dsync.dto.DropboxFileData;
+import com.yet.dsync.dto.LocalFileState;
+import com.yet.dsync.exception.DSyncClientException;
+import com.yet.dsync.util.PathUtil;
+import com.yet.dsync.util.PropertyUtil;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Creates file from local file that has the same content as the file in
+ * Dropbox, instead of downloading it. Candidates are looked up by content
+ * hash in the local file states and in the metadata of loaded files. The
+ * candidate is used only if its current content still has the hash, which
+ * is cheap to check for files that were not changed since their hash was
+ * stored. The copy is staged in temporary file and verified by content hash
+ * before it is moved in place of the target, same as downloaded content.
+ */
+class LocalDuplicateCopier {
+
+    /**
+     * How content of other local file with the same content hash is reused.
+     */
+    enum Mode {
+        /** Content is always downloaded */
+        NONE,
+        /** Local file with the same content is copied */
+        COPY,
+        /**
+         * Hard link to local file with the same content is created, falling
+         * back to copy if file system doesn't support it. Both paths share
+         * the content then, so local change of one of them changes the other
+         */
+        LINK
+    }
+
+    private static final Logger LOG = LogManager.getLogger(LocalDuplicateCopier.class);
+
+    private static final Mode MODE = PropertyUtil.getEnum("dsync.download.dedup", Mode.class, Mode.COPY);
+
+    private static final int MAX_CANDIDATES = 8;
+
+    private static final String LOCAL_COPY_TEMP_TAG = "-local";
+
+    private final MetadataStore metadataStore;
+    private final LocalStateService localStateService;
+    private final LocalFolderService localFolderService;
+    private final FileDownloader fileDownloader;
+
+    LocalDuplicateCopier(final MetadataStore metadataStore,
+                         final LocalStateService localStateService,
+                         final LocalFolderService localFolderService,
+                         final FileDownloader fileDownloader) {
+        this.metadataStore = metadataStore;
+        this.localStateService = localStateService;
+        this.localFolderService = localFolderService;
+        this.fileDownloader = fileDownloader;
+    }
+
+    /**
+     * Creates the target from local file with the same content.
+     *
+     * @param fileData
+     *            data of the file to create
+     * @param target
+     *            local file to create or replace
+     * @return true if the target was created, false if it has to be
+     *         downloaded
+     */
+    boolean copy(final DropboxFileData fileData, final Path target) {
+        if (MODE == Mode.NONE) {
+            return false;
+        }
+        final Path source = find(fileData);
+        if (source == null) {
+            return false;
+        }
+
+        final Path tempFile = PathUtil.buildDownloadTempPath(target, fileData.getRev() + LOCAL_COPY_TEMP_TAG);
+        try {
+            Files.deleteIfExists(tempFile);
+            if (MODE != Mode.LINK || !createLink(tempFile, source)) {
+                Files.copy(source, tempFile);
+            }
+            fileDownloader.verifyContentHash(fileData, tempFile);
+        } catch (final IOException | DSyncClientException ex) {
+            LOG.warn("Failed to copy local " + source + ". Downloading " + fileData.getPathDisplay(), ex);
+            fileDownloader.deleteTempFile(tempFile);
+            return false;
+        }
+
+        fileDownloader.moveInPlace(tempFile, target);
+        LOG.info("Copied {} from local {}", fileData::getPathDisplay, () -> source);
+        return true;
+    }
+
+    private static boolean createLink(final Path link, final Path existing) {
+        try {
+            Files.createLink(link, existing);
+            return true;
+        } catch (final IOException | UnsupportedOperationException ex) {
+            LOG.debug("Failed to create hard link to " + existing + ". Copying it", ex);
+            return false;
+        }
+    }
+
+    private Path find(final DropboxFileData fileData) {
+        final String contentHash = fileData.getContentHash();
+        if (contentHash == null || fileData.getSize() == null) {
+            return null;
+        }
+
+        /* Candidate paths by lower case path, the file itself is not a candidate */
+        final Map<String, String> candidates = new LinkedHashMap<>();
+        for (final LocalFileState state : localStateService.findByContentHash(contentHash, MAX_CANDIDATES)) {
+            candidates.put(state.getPathLower(), state.getPathDisplay());
+        }
+        for (final DropboxFileData loaded : metadataStore.readLoadedByContentHash(contentHash, MAX_CANDIDATES)) {
+            candidates.putIfAbsent(loaded.getPathLower(), loaded.getPathDisplay());
+        }
+        candidates.remove(fileData.getPathLower());
+
+        for (final String candidatePath : candidates.values()) {
+            final File candidate = localFolderService.buildFileObject(candidatePath);
+            if (hasContent(candidate, candidatePath, fileData)) {
+                return candidate.toPath();
+            }
+        }
+        return null;
+    }
+
+    private boolean hasContent(final File candidate, final String candidatePath, final DropboxFileData fileData) {
+        if (!candidate.isFile() || candidate.length() != fileData.getSize()) {
+            return false;
+        }
+        try {
+            return fileData.getContentHash().equals(localStateService.contentHash(candidate.toPath(), candidatePath));
+        } catch (final IOException ex) {
+            LOG.debug("Failed to hash local copy candidate " + candidate, ex);
+            return false;
+        }
+    }
+
+}
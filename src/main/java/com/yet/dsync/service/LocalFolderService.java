@@ -29,6 +29,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.charset.Charset;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -45,6 +46,8 @@ public class LocalFolderService {
 
     private File localDir;
 
+    private volatile LocalFolderWatching folderWatching;
+
     @SuppressWarnings("PMD.SystemPrintln")
     public void setupLocalFolder() {
         System.out.print("Input local folder to use for Dropbox: ");
@@ -128,6 +131,37 @@ public class LocalFolderService {
         }
     }
 
+    /**
+     * Moving local file or folder. Watched paths of the moved folder are
+     * updated, so its watch keys keep working at the new path.
+     *
+     * @param fromPath previous path in Dropbox
+     * @param toPath new path in Dropbox
+     * @return true if moved, false if there is nothing to move or the target
+     *         exists
+     */
+    public boolean moveFileOrFolder(final String fromPath, final String toPath) {
+        final Path source = buildFileObject(fromPath).toPath();
+        final Path target = buildFileObject(toPath).toPath();
+        final Path targetDir = target.getParent();
+        syncLock.lock();
+        try {
+            if (targetDir == null || !Files.exists(source) || Files.exists(target)) {
+                return false;
+            }
+            Files.createDirectories(targetDir);
+            Files.move(source, target);
+            if (folderWatching != null) {
+                folderWatching.moveWatchedPaths(source, target);
+            }
+            return true;
+        } catch (final IOException ex) {
+            throw new DSyncClientException("Failed to move " + source + " to " + target, ex);
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
     public File buildFileObject(final String path) {
         return new File(localDir.getAbsolutePath() + path);
     }
@@ -136,8 +170,11 @@ public class LocalFolderService {
         return PathUtil.extractDropboxPath(localDir, path);
     }
 
-    public Runnable createFolderWatchingThread(final LocalFolderChange changeListener) {
-        return new LocalFolderWatching(localDir.getAbsolutePath(), changeListener, globalOperationsTracker);
+    public Runnable createFolderWatchingThread(final LocalFolderChange changeListener,
+                                               final LocalStateService localStateService) {
+        folderWatching = new LocalFolderWatching(localDir.getAbsolutePath(), changeListener,
+                globalOperationsTracker, localStateService);
+        return folderWatching;
     }
 
 }
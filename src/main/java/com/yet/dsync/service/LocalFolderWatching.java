@@ -37,11 +37,12 @@ import java.nio.file.WatchEvent.Kind;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
-import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
@@ -71,19 +72,30 @@ public class LocalFolderWatching implements Runnable {
 
     private final BlockingQueue<LocalFolderData> localPathChanges = new LinkedBlockingDeque<>(
             10);
-    private final Map<WatchKey, Path> keys = new HashMap<>();
+    private final ConcurrentMap<WatchKey, Path> keys = new ConcurrentHashMap<>();
+
+    /* File keys (inodes) of watched folders, needed to detect their moves */
+    private final ConcurrentMap<Path, String> dirFileKeys = new ConcurrentHashMap<>();
     private final WatcherRegisterConsumer watcherConsumer;
 
     private final ConcurrentMap<Path, FileChangeData> filesModifiedMap = new ConcurrentHashMap<>();
 
+    /* Created folders that didn't match a delete and wait for one more try to match */
+    private final Set<Path> deferredFolderCreates = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService deferredFolderCreateExecutor;
+
     private final GlobalOperationsTracker globalOperationsTracker;
 
+    private final LocalMoveDetector moveDetector;
+
     public LocalFolderWatching(final String localDir,
             final LocalFolderChange changeListener,
-            final GlobalOperationsTracker globalOperationsTracker) {
+            final GlobalOperationsTracker globalOperationsTracker,
+            final LocalStateService localStateService) {
         this.localDir = localDir;
         this.changeListener = changeListener;
         this.globalOperationsTracker = globalOperationsTracker;
+        this.moveDetector = new LocalMoveDetector(localDir, changeListener, localStateService);
 
         try {
             this.watchService = FileSystems.getDefault().newWatchService();
@@ -94,6 +106,10 @@ public class LocalFolderWatching implements Runnable {
         watcherConsumer = new WatcherRegisterConsumer(watchService, key -> {
             final Path path = (Path) key.watchable();
             keys.put(key, path);
+            final String fileKey = readFileKey(path);
+            if (fileKey != null) {
+                dirFileKeys.put(path, fileKey);
+            }
         });
 
         final ThreadFactory namedThreadFactory = new ThreadFactoryBuilder()
@@ -112,6 +128,9 @@ public class LocalFolderWatching implements Runnable {
                 .newSingleThreadScheduledExecutor(namedThreadFactoryLocalWait);
         executorServiceForFiles.scheduleAtFixedRate(new FileWaitThread(),
                 FILE_WAIT_TIME_SEC, FILE_WAIT_TIME_SEC, TimeUnit.SECONDS);
+
+        deferredFolderCreateExecutor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("local-folder-wait-%d").build());
     }
 
     @Override
@@ -171,7 +190,45 @@ public class LocalFolderWatching implements Runnable {
         }
     }
 
+    private static String readFileKey(final Path path) {
+        try {
+            final Object fileKey = Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+            return fileKey == null ? null : fileKey.toString();
+        } catch (final IOException ex) {
+            LOG.debug("Failed to read file key of " + path, ex);
+            return null;
+        }
+    }
+
+    /**
+     * Pointing watch keys of moved folder and all folders under it to their
+     * new paths. Watch keys stay valid when folder is moved, so nothing has
+     * to be registered again.
+     */
+    void moveWatchedPaths(final Path source, final Path target) {
+        for (final Entry<WatchKey, Path> entry : keys.entrySet()) {
+            if (entry.getValue().startsWith(source)) {
+                entry.setValue(target.resolve(source.relativize(entry.getValue())));
+            }
+        }
+
+        final List<Path> movedDirs = dirFileKeys.keySet().stream()
+                .filter(dir -> dir.startsWith(source))
+                .collect(Collectors.toList());
+        for (final Path dir : movedDirs) {
+            final String fileKey = dirFileKeys.remove(dir);
+            if (fileKey != null) {
+                dirFileKeys.put(target.resolve(source.relativize(dir)), fileKey);
+            }
+        }
+    }
+
     private void processWatchEvent(final Kind<Path> watchEventKind, final Path path) {
+        if (PathUtil.isDownloadTempFile(path)) {
+            LOG.trace("Download in progress. Skipping: {}", () -> path);
+            return;
+        }
+
         final String dropboxPathLower = PathUtil.extractDropboxPath(localDir, path)
                 .toLowerCase(Locale.getDefault());
         if (globalOperationsTracker.isTracked(dropboxPathLower)) {
@@ -248,32 +305,90 @@ public class LocalFolderWatching implements Runnable {
             }
         }
 
+        /**
+         * Registering watchers for the whole created tree and forwarding
+         * creation of every file in it. Dropbox creates parent folders of the
+         * uploaded file implicitly, so only empty leaf folders are forwarded
+         * to be created explicitly, which are created in batches then.
+         *
+         * Delete and create of moved folder are taken by different threads,
+         * so create that doesn't match a delete is tried once more after the
+         * wait time, giving the delete time to be held.
+         */
         private void processFolderCreateChange(final LocalFolderData folderData)
                 throws IOException {
+            final String fileKey = readFileKey(folderData.getPath());
+            final Path source = moveDetector.matchDirectory(fileKey);
+            final boolean deferred = deferredFolderCreates.remove(folderData.getPath());
+            if (source == null && fileKey != null && !deferred) {
+                deferredFolderCreates.add(folderData.getPath());
+                LOG.trace("Deferring create of folder {} to match it with delete", folderData::getPath);
+                deferredFolderCreateExecutor.schedule(() -> processDeferredFolderCreate(folderData),
+                        LOCAL_CHANGE_WAIT_TIME, TimeUnit.MILLISECONDS);
+                return;
+            }
+            if (source != null) {
+                LOG.debug("Detected local move from {} to {}", () -> source, folderData::getPath);
+                dirFileKeys.put(source, fileKey);
+                moveWatchedPaths(source, folderData.getPath());
+                changeListener.processChange(
+                        new LocalFolderData(folderData.getPath(), LocalFolderChangeType.MOVE, source));
+                return;
+            }
+
             watcherConsumer.accept(folderData.getPath());
-            changeListener.processChange(folderData);
+
+            final Set<Path> nonEmptyDirs = new HashSet<>();
+            final List<Path> emptyDirs = new ArrayList<>();
 
             Files.walkFileTree(folderData.getPath(),
                 new SimpleFileVisitor<Path>() {
 
                     @Override
                     public FileVisitResult visitFile(final Path file,
-                                                     final BasicFileAttributes attrs) throws IOException {
-                        processWatchEvent(StandardWatchEventKinds.ENTRY_CREATE, file);
+                                                     final BasicFileAttributes attrs) {
+                        if (!PathUtil.isDownloadTempFile(file)) {
+                            nonEmptyDirs.add(file.getParent());
+                            processWatchEvent(StandardWatchEventKinds.ENTRY_CREATE, file);
+                        }
                         return FileVisitResult.CONTINUE;
                     }
 
                     @Override
                     public FileVisitResult preVisitDirectory(final Path dir,
-                                                             final BasicFileAttributes attrs) throws IOException {
-                        if (dir.equals(folderData.getPath())) {
-                            return FileVisitResult.CONTINUE;
-                        } else {
-                            processWatchEvent(StandardWatchEventKinds.ENTRY_CREATE, dir);
-                            return FileVisitResult.SKIP_SUBTREE;
+                                                             final BasicFileAttributes attrs) {
+                        if (!dir.equals(folderData.getPath())) {
+                            nonEmptyDirs.add(dir.getParent());
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult postVisitDirectory(final Path dir,
+                                                              final IOException exc) {
+                        if (!nonEmptyDirs.contains(dir)) {
+                            emptyDirs.add(dir);
                         }
+                        return FileVisitResult.CONTINUE;
                     }
                 });
+
+            LOG.trace("Found {} empty folders in created folder {}", emptyDirs::size, folderData::getPath);
+            for (final Path dir : emptyDirs) {
+                if (dir.equals(folderData.getPath())) {
+                    changeListener.processChange(folderData);
+                } else {
+                    processWatchEvent(StandardWatchEventKinds.ENTRY_CREATE, dir);
+                }
+            }
+        }
+
+        private void processDeferredFolderCreate(final LocalFolderData folderData) {
+            try {
+                processFolderCreateChange(folderData);
+            } catch (final IOException ex) {
+                LOG.error("Failed in processing of created folder " + folderData.getPath(), ex);
+            }
         }
 
         private void processFileCreateChange(final LocalFolderData folderData,
@@ -286,8 +401,13 @@ public class LocalFolderWatching implements Runnable {
 
         private void processDeleteChange(final LocalFolderData folderData) {
             filesModifiedMap.remove(folderData.getPath());
-            // Forwarding delete, as nothing to be done here
-            changeListener.processChange(folderData);
+            // Forwarding delete, unless it can be a part of move
+            final String dirFileKey = dirFileKeys.remove(folderData.getPath());
+            if (dirFileKey == null) {
+                moveDetector.processDelete(folderData);
+            } else {
+                moveDetector.processDirectoryDelete(folderData, dirFileKey);
+            }
         }
     }
 
@@ -311,7 +431,12 @@ public class LocalFolderWatching implements Runnable {
                             .forEach(filesModifiedMap::remove);
                     LOG.trace("Notifying about {} files created/modified",
                         () -> filesToProcess.size());
-                    filesToProcess.forEach(changeListener::processChange);
+                    for (final LocalFolderData fileData : filesToProcess) {
+                        if (fileData.getChangeType() != LocalFolderChangeType.CREATE
+                                || !moveDetector.processCreate(fileData)) {
+                            changeListener.processChange(fileData);
+                        }
+                    }
                 }
             }
         }
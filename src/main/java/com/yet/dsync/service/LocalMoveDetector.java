@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.yet.dsync.service;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.yet.dsync.dto.LocalFileState;
+import com.yet.dsync.dto.LocalFolderChangeType;
+import com.yet.dsync.dto.LocalFolderData;
+import com.yet.dsync.util.PathUtil;
+import com.yet.dsync.util.PropertyUtil;
+import lombok.Data;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Detects local moves of files and folders. Watch service reports a move as
+ * delete of the old path and create of the new one. Delete of a file with
+ * known state or of a watched folder is held for a short time, and if a file
+ * with the same file key (inode), size and modification time or a folder
+ * with the same file key is created meanwhile, both events are replaced
+ * with one move change. Not paired deletes are forwarded when the time is
+ * over.
+ */
+class LocalMoveDetector {
+
+    private static final Logger LOG = LogManager.getLogger(LocalMoveDetector.class);
+
+    /* Create is reported only when file size is stable, which takes up to two file wait checks */
+    private static final long MOVE_WINDOW_MS = PropertyUtil.getLong(
+            "dsync.move.windowMillis", 10_000, 0, 600_000);
+
+    private static final boolean VERIFY_HASH = Boolean.getBoolean("dsync.move.verifyHash");
+
+    private final String localDir;
+    private final LocalFolderChange changeListener;
+    private final LocalStateService localStateService;
+
+    /* Held deletes by file key */
+    private final ConcurrentMap<String, PendingDelete> pendingDeletes = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService scheduledExecutorService;
+
+    LocalMoveDetector(final String localDir,
+                      final LocalFolderChange changeListener,
+                      final LocalStateService localStateService) {
+        this.localDir = localDir;
+        this.changeListener = changeListener;
+        this.localStateService = localStateService;
+
+        scheduledExecutorService = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("local-move-wait-%d").setDaemon(true).build());
+    }
+
+    /**
+     * Holding the delete if it can be a part of move, otherwise forwarding
+     * it.
+     *
+     * @param folderData delete change
+     */
+    void processDelete(final LocalFolderData folderData) {
+        final LocalFileState state = MOVE_WINDOW_MS == 0 ? null
+                : localStateService.find(PathUtil.extractDropboxPath(localDir, folderData.getPath()));
+
+        if (state == null || state.getFileKey() == null) {
+            changeListener.processChange(folderData);
+        } else {
+            hold(new PendingDelete(folderData, state, false));
+        }
+    }
+
+    /**
+     * Holding the delete of watched folder, as it can be a part of move.
+     *
+     * @param folderData delete change
+     * @param fileKey file key of the folder recorded when it was registered
+     */
+    void processDirectoryDelete(final LocalFolderData folderData, final String fileKey) {
+        if (MOVE_WINDOW_MS == 0) {
+            changeListener.processChange(folderData);
+        } else {
+            hold(new PendingDelete(folderData, LocalFileState.builder().fileKey(fileKey).build(), true));
+        }
+    }
+
+    private void hold(final PendingDelete pendingDelete) {
+        final PendingDelete replaced = pendingDeletes.put(pendingDelete.getState().getFileKey(), pendingDelete);
+        if (replaced != null) {
+            changeListener.processChange(replaced.getFolderData());
+        }
+        LOG.trace("Holding delete of {} for move detection", () -> pendingDelete.getFolderData().getPath());
+        scheduledExecutorService.schedule(() -> expire(pendingDelete),
+                MOVE_WINDOW_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void expire(final PendingDelete pendingDelete) {
+        if (pendingDeletes.remove(pendingDelete.getState().getFileKey(), pendingDelete)) {
+            changeListener.processChange(pendingDelete.getFolderData());
+        }
+    }
+
+    /**
+     * Forwarding created file as a move if it matches one of held deletes.
+     *
+     * @param folderData create change of the file
+     * @return true if the change was forwarded as a move
+     */
+    boolean processCreate(final LocalFolderData folderData) {
+        if (pendingDeletes.isEmpty()) {
+            return false;
+        }
+
+        final Path path = folderData.getPath();
+        final String dropboxPath = PathUtil.extractDropboxPath(localDir, path);
+        final LocalFileState currentState;
+        try {
+            currentState = localStateService.readState(path, dropboxPath);
+        } catch (final IOException ex) {
+            LOG.debug("Failed to read state of " + path, ex);
+            return false;
+        }
+
+        final PendingDelete pendingDelete = currentState.getFileKey() == null ? null
+                : pendingDeletes.get(currentState.getFileKey());
+        if (pendingDelete == null || pendingDelete.isDirectory()
+                || !isSameFile(pendingDelete.getState(), currentState, path, dropboxPath)
+                || !pendingDeletes.remove(currentState.getFileKey(), pendingDelete)) {
+            return false;
+        }
+
+        final Path sourcePath = pendingDelete.getFolderData().getPath();
+        LOG.debug("Detected local move from {} to {}", () -> sourcePath, () -> path);
+        changeListener.processChange(new LocalFolderData(path, LocalFolderChangeType.MOVE, sourcePath));
+        return true;
+    }
+
+    /**
+     * Finding held delete of the folder with the same file key. The caller
+     * forwards the move, as watched paths have to be updated first.
+     *
+     * @param fileKey file key of the created folder
+     * @return previous path of the folder or null if it was not moved
+     */
+    Path matchDirectory(final String fileKey) {
+        final PendingDelete pendingDelete = fileKey == null ? null : pendingDeletes.get(fileKey);
+        if (pendingDelete == null || !pendingDelete.isDirectory()
+                || !pendingDeletes.remove(fileKey, pendingDelete)) {
+            return null;
+        }
+        return pendingDelete.getFolderData().getPath();
+    }
+
+    private boolean isSameFile(final LocalFileState deletedState, final LocalFileState currentState,
+                               final Path path, final String dropboxPath) {
+        if (!deletedState.isSameState(currentState.getFileKey(), currentState.getSize(),
+                currentState.getLastModified())) {
+            return false;
+        }
+        if (!VERIFY_HASH || deletedState.getContentHash() == null) {
+            return true;
+        }
+        try {
+            return deletedState.getContentHash().equals(localStateService.contentHash(path, dropboxPath));
+        } catch (final IOException ex) {
+            LOG.debug("Failed to hash " + path, ex);
+            return false;
+        }
+    }
+
+    @Data
+    private static class PendingDelete {
+        private final LocalFolderData folderData;
+        private final LocalFileState state;
+        private final boolean directory;
+    }
+
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.yet.dsync.service;
+
+import com.yet.dsync.dao.LocalStateDao;
+import com.yet.dsync.dto.LocalFileState;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Keeps the last known state of local files: file key (inode), size,
+ * modification time and content hash. Content hash of the file is
+ * calculated again only when any of the other attributes has changed, so
+ * checking unchanged files costs one stat call instead of reading the whole
+ * file.
+ */
+public class LocalStateService {
+
+    private static final Logger LOG = LogManager.getLogger(LocalStateService.class);
+
+    private final LocalStateDao localStateDao;
+    private final ContentHashService contentHashService;
+
+    public LocalStateService(final LocalStateDao localStateDao, final ContentHashService contentHashService) {
+        this.localStateDao = localStateDao;
+        this.contentHashService = contentHashService;
+    }
+
+    /**
+     * Returns content hash of the local file. Stored hash is returned if file
+     * was not changed since it was calculated, otherwise the hash is
+     * calculated and stored together with the current file state.
+     *
+     * @param file
+     *            local file
+     * @param dropboxPath
+     *            path of the file in Dropbox
+     * @return content hash of the file
+     * @throws IOException
+     *             if file can't be read
+     */
+    public String contentHash(final Path file, final String dropboxPath) throws IOException {
+        final LocalFileState currentState = readState(file, dropboxPath);
+        final LocalFileState storedState = localStateDao.read(currentState.getPathLower());
+
+        if (storedState != null && storedState.getContentHash() != null
+                && storedState.isSameState(currentState.getFileKey(), currentState.getSize(),
+                    currentState.getLastModified())) {
+            LOG.trace("Using stored content hash of {}", () -> dropboxPath);
+            return storedState.getContentHash();
+        }
+
+        final String contentHash = contentHashService.hash(file);
+        localStateDao.write(currentState.toBuilder().contentHash(contentHash).build());
+        return contentHash;
+    }
+
+    /**
+     * Reads stored state of the file.
+     *
+     * @param dropboxPath
+     *            path of the file in Dropbox
+     * @return stored state or null if the file is not known
+     */
+    public LocalFileState find(final String dropboxPath) {
+        return localStateDao.read(dropboxPath.toLowerCase(Locale.getDefault()));
+    }
+
+    /**
+     * Reads stored states of files with the content hash.
+     *
+     * @param contentHash
+     *            content hash to look for
+     * @param limit
+     *            maximum number of states to read
+     * @return stored states of files with the content hash
+     */
+    public List<LocalFileState> findByContentHash(final String contentHash, final int limit) {
+        return localStateDao.readByContentHash(contentHash, limit);
+    }
+
+    /**
+     * Reads current state of the local file. Content hash is not filled.
+     *
+     * @param file
+     *            local file
+     * @param dropboxPath
+     *            path of the file in Dropbox
+     * @return current state of the file
+     * @throws IOException
+     *             if file attributes can't be read
+     */
+    public LocalFileState readState(final Path file, final String dropboxPath) throws IOException {
+        final BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        final Object fileKey = attributes.fileKey();
+        return LocalFileState.builder()
+            .pathLower(dropboxPath.toLowerCase(Locale.getDefault()))
+            .pathDisplay(dropboxPath)
+            .fileKey(fileKey == null ? null : fileKey.toString())
+            .size(attributes.size())
+            .lastModified(attributes.lastModifiedTime().toMillis())
+            .build();
+    }
+
+    /**
+     * Stores current state of the file with known content hash. Failure to
+     * read file state is only logged, as the state will be rebuilt when hash
+     * is needed next time.
+     *
+     * @param file
+     *            local file
+     * @param dropboxPath
+     *            path of the file in Dropbox
+     * @param contentHash
+     *            content hash of the file
+     */
+    public void record(final Path file, final String dropboxPath, final String contentHash) {
+        try {
+            localStateDao.write(readState(file, dropboxPath).toBuilder().contentHash(contentHash).build());
+        } catch (final IOException ex) {
+            LOG.warn("Failed to read state of " + file, ex);
+        }
+    }
+
+    /**
+     * Moves stored state of the file to its new path, keeping the content
+     * hash, as moving doesn't change the content.
+     *
+     * @param fromPath
+     *            previous path of the file in Dropbox
+     * @param file
+     *            local file at the new path
+     * @param toPath
+     *            new path of the file in Dropbox
+     */
+    public void move(final String fromPath, final Path file, final String toPath) {
+        final LocalFileState storedState = find(fromPath);
+        remove(fromPath);
+        if (storedState != null) {
+            record(file, toPath, storedState.getContentHash());
+        }
+    }
+
+    /**
+     * Moves stored state of all files under the folder to its new path.
+     *
+     * @param fromPath
+     *            previous path of the folder in Dropbox
+     * @param toPath
+     *            new path of the folder in Dropbox
+     */
+    public void moveTree(final String fromPath, final String toPath) {
+        localStateDao.moveTree(fromPath.toLowerCase(Locale.getDefault()), toPath);
+    }
+
+    public void remove(final String dropboxPath) {
+        localStateDao.delete(dropboxPath.toLowerCase(Locale.getDefault()));
+    }
+
+    public void removeTrees(final Collection<String> pathsLower) {
+        localStateDao.deleteTrees(pathsLower);
+    }
+
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package com.yet.dsync.service;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.yet.dsync.dao.MetadataStore;
+import com.yet.dsync.util.PropertyUtil;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+/**
+ * Removes metadata rows whose parent folder has no row. Such rows were left
+ * by earlier versions that deleted only the row of deleted folder, and then
+ * were scheduled for download on every start.
+ *
+ * Candidates are read from the database and checked once again through the
+ * DAO before removal, as the parent may have been just written and not
+ * committed yet. Each orphan is removed together with everything under it.
+ */
+public class MetadataCompactor {
+
+    private static final Logger LOG = LogManager.getLogger(MetadataCompactor.class);
+
+    /* Number of orphan candidates read from database at once */
+    private static final int BATCH_SIZE = PropertyUtil.getInt("dsync.metadata.compactBatchSize", 500, 1, 100_000);
+
+    private final MetadataStore metadataStore;
+
+    public MetadataCompactor(final MetadataStore metadataStore) {
+        this.metadataStore = metadataStore;
+    }
+
+    /**
+     * Starting compaction in background.
+     */
+    @SuppressFBWarnings(value = "RV_RETURN_VALUE_IGNORED_BAD_PRACTICE",
+        justification = "Compaction reports its own failures")
+    public void start() {
+        final ExecutorService executor = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("metadata-compact-%d").setDaemon(true).build());
+        executor.submit(this::compact);
+        executor.shutdown();
+    }
+
+    private void compact() {
+        long removed = 0;
+        String after = StringUtils.EMPTY;
+        try {
+            List<String> candidates;
+            do {
+                candidates = metadataStore.readOrphanLowerPaths(after, BATCH_SIZE);
+                if (!candidates.isEmpty()) {
+                    after = candidates.get(candidates.size() - 1);
+                }
+
+                final List<String> orphans = candidates.stream()
+                    .filter(this::isOrphan)
+                    .collect(Collectors.toList());
+                if (!orphans.isEmpty()) {
+                    metadataStore.deleteTreesByLowerPath(orphans);
+                    metadataStore.whenDurable().join();
+                    removed += orphans.size();
+                }
+            } while (candidates.size() == BATCH_SIZE);
+
+            if (removed > 0) {
+                LOG.info("Removed {} orphaned metadata entries", removed);
+            }
+        } catch (final RuntimeException ex) {
+            LOG.error("Failed to remove orphaned metadata entries", ex);
+        }
+    }
+
+    private boolean isOrphan(final String pathLower) {
+        final String parentPathLower = FilenameUtils.getFullPathNoEndSeparator(pathLower);
+        return metadataStore.readByLowerPath(parentPathLower) == null;
+    }
+
+}
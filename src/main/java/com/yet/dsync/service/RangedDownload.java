@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.yet.dsync.service;
+
+import com.dropbox.core.DbxDownloader;
+import com.dropbox.core.v2.files.FileMetadata;
+import com.yet.dsync.dto.DropboxFileData;
+import com.yet.dsync.util.PropertyUtil;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Downloads one file over several connections. The file is preallocated and
+ * split into equal byte ranges, each range is fetched in separate thread and
+ * transferred from the response stream straight into the shared
+ * {@link FileChannel} at its position. Range that failed in the middle is
+ * continued from the last written byte, so the whole file is not downloaded
+ * again because of one broken connection.
+ */
+class RangedDownload {
+
+    private static final Logger LOG = LogManager.getLogger(RangedDownload.class);
+
+    /* How many ranges can be downloaded at the same time for all files */
+    private static final int MAX_CONCURRENT_RANGE_DOWNLOADS = PropertyUtil.getInt(
+        "dsync.download.maxConnections", 8, 1, 64);
+
+    private final DropboxService dropboxService;
+    private final ExecutorService rangeExecutor;
+    private final int connections;
+    private final long minRangeSize;
+    private final int maxAttempts;
+    private final long transferWindow;
+
+    private final Semaphore rangeDownloadPermits = new Semaphore(MAX_CONCURRENT_RANGE_DOWNLOADS, true);
+
+    RangedDownload(final DropboxService dropboxService, final ExecutorService rangeExecutor,
+                   final int connections, final long minRangeSize, final int maxAttempts,
+                   final long transferWindow) {
+        this.dropboxService = dropboxService;
+        this.rangeExecutor = rangeExecutor;
+        this.connections = connections;
+        this.minRangeSize = minRangeSize;
+        this.maxAttempts = maxAttempts;
+        this.transferWindow = transferWindow;
+    }
+
+    /**
+     * Downloads the file into the given path. Existing content of the file is
+     * overwritten.
+     *
+     * @param fileData
+     *            data of the file to download, size must be known
+     * @param file
+     *            file to write to
+     * @throws IOException
+     *             if any of the ranges failed to download
+     */
+    public void download(final DropboxFileData fileData, final Path file) throws IOException {
+        final long size = fileData.getSize();
+        final long rangeCount = Math.max(1, Math.min(connections, size / minRangeSize));
+        final long rangeSize = (size + rangeCount - 1) / rangeCount;
+
+        LOG.debug("Downloading {} in {} ranges", fileData::getPathDisplay, () -> rangeCount);
+
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw");
+             FileChannel channel = raf.getChannel()) {
+            raf.setLength(size);
+
+            final List<Future<?>> ranges = new ArrayList<>();
+            try {
+                for (long start = 0; start < size; start += rangeSize) {
+                    final RangeTask task = new RangeTask(fileData, channel, start, Math.min(size, start + rangeSize));
+                    ranges.add(rangeExecutor.submit(() -> {
+                        task.run();
+                        return null;
+                    }));
+                }
+                for (final Future<?> range : ranges) {
+                    range.get();
+                }
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw (InterruptedIOException) new InterruptedIOException("Interrupted while downloading ranges")
+                    .initCause(ex);
+            } catch (final ExecutionException ex) {
+                throw new IOException("Failed to download " + fileData.getPathDisplay(), ex);
+            } finally {
+                for (final Future<?> range : ranges) {
+                    range.cancel(true);
+                }
+            }
+        }
+    }
+
+    /**
+     * Downloads one range of the file, retrying from the current position if
+     * transfer breaks.
+     */
+    private final class RangeTask {
+
+        private final DropboxFileData fileData;
+        private final FileChannel channel;
+        private final long end;
+
+        private long position;
+
+        RangeTask(final DropboxFileData fileData, final FileChannel channel, final long start, final long end) {
+            this.fileData = fileData;
+            this.channel = channel;
+            this.position = start;
+            this.end = end;
+        }
+
+        void run() throws IOException {
+            for (int attempt = 1;; attempt++) {
+                try {
+                    transferRange();
+                } catch (final InterruptedIOException ex) {
+                    throw ex;
+                } catch (final IOException ex) {
+                    if (attempt >= maxAttempts) {
+                        throw ex;
+                    }
+                    LOG.warn("Range of {} interrupted at {}. Resuming", fileData.getPathDisplay(), position);
+                    continue;
+                }
+                if (position == end) {
+                    return;
+                }
+                if (attempt >= maxAttempts) {
+                    throw new IOException("Range of " + fileData.getPathDisplay() + " ended at "
+                        + position + " instead of " + end);
+                }
+            }
+        }
+
+        /**
+         * Transfers the rest of the range while holding one of the global
+         * connection permits. Position is advanced after each transfer
+         * window, so it always points to the first byte that is not written.
+         */
+        private void transferRange() throws IOException {
+            try {
+                rangeDownloadPermits.acquire();
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw (InterruptedIOException) new InterruptedIOException("Interrupted while waiting for connection")
+                    .initCause(ex);
+            }
+            try (DbxDownloader<FileMetadata> downloader = dropboxService.openDownload(fileData.getPathDisplay(),
+                    fileData.getRev(), position, end - position);
+                 ReadableByteChannel source = Channels.newChannel(downloader.getInputStream())) {
+                while (position < end) {
+                    final long transferred = channel.transferFrom(source, position,
+                        Math.min(transferWindow, end - position));
+                    if (transferred <= 0) {
+                        break;
+                    }
+                    position += transferred;
+                }
+            } finally {
+                rangeDownloadPermits.release();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.yet.dsync.service;
+
+import com.dropbox.core.v2.files.DeleteBatchJobStatus;
+import com.dropbox.core.v2.files.DeleteBatchLaunch;
+import com.dropbox.core.v2.files.DeleteBatchResult;
+import com.dropbox.core.v2.files.DeleteBatchResultEntry;
+import com.dropbox.core.v2.files.DeleteError;
+import com.yet.dsync.dao.MetadataStore;
+import com.yet.dsync.util.PathUtil;
+import com.yet.dsync.util.PropertyUtil;
+import lombok.Data;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.stream.Collectors;
+
+/**
+ * Deletes paths in Dropbox in batches of up to
+ * {@value AbstractAsyncBatcher#MAX_BATCH_SIZE} paths. Deletes that come in
+ * during flush interval are coalesced: when both directory and paths under
+ * it are deleted, only the directory is sent to Dropbox. So removal of big
+ * local directory, which produces delete event for every file in it, ends up
+ * in a single delete.
+ *
+ * Metadata of deleted paths and everything under them is removed in one
+ * transaction. Paths that failed because of too many write operations are
+ * added to the next batch.
+ *
+ * Pending delete is cancelled if the path is created again before the batch
+ * is sent. Delete that was already sent is not retried, and its metadata is
+ * not removed, if the path exists locally again.
+ */
+public class RemoteDeleteBatcher
+        extends AbstractAsyncBatcher<RemoteDeleteBatcher.PendingDelete, DeleteBatchResult> {
+
+    private static final Logger LOG = LogManager.getLogger(RemoteDeleteBatcher.class);
+
+    private static final long FLUSH_INTERVAL_MS = PropertyUtil.getLong(
+            "dsync.delete.batchFlushMillis", 1000, 100, 60_000);
+
+    private final DropboxService dropboxService;
+    private final MetadataStore metadataStore;
+    private final LocalStateService localStateService;
+    private final LocalFolderService localFolderService;
+
+    /* Pending deletes by lower case path, none of them is under another one */
+    private final Map<String, PendingDelete> pendingDeletes = new LinkedHashMap<>();
+
+    public RemoteDeleteBatcher(final DropboxService dropboxService,
+                               final MetadataStore metadataStore,
+                               final LocalStateService localStateService,
+                               final LocalFolderService localFolderService) {
+        super("delete", FLUSH_INTERVAL_MS);
+        this.dropboxService = dropboxService;
+        this.metadataStore = metadataStore;
+        this.localStateService = localStateService;
+        this.localFolderService = localFolderService;
+    }
+
+    /**
+     * Adding path to the next delete batch. If the parent directory is
+     * already waiting for delete, then nothing else is needed. If paths
+     * under this one are waiting for delete, then they are replaced by it.
+     *
+     * @param dropboxPath path to delete
+     */
+    public void add(final String dropboxPath) {
+        addEntries(Collections.singletonList(new PendingDelete(dropboxPath, 1)));
+    }
+
+    /**
+     * Cancelling pending delete of the path, because it was created again.
+     * If the delete of parent directory is pending, it is cancelled too, and
+     * the paths it covered are deleted one by one.
+     *
+     * @param dropboxPath path that exists locally
+     */
+    public void cancel(final String dropboxPath) {
+        final String pathLower = dropboxPath.toLowerCase(Locale.getDefault());
+        withPendingLocked(() -> {
+            final Iterator<Entry<String, PendingDelete>> iterator = pendingDeletes.entrySet().iterator();
+            final List<String> uncovered = new ArrayList<>();
+            while (iterator.hasNext()) {
+                final PendingDelete pendingDelete = iterator.next().getValue();
+                final String pendingLower = pendingDelete.getPathLower();
+                if (pendingLower.equals(pathLower) || PathUtil.isUnder(pathLower, pendingLower)) {
+                    iterator.remove();
+                    LOG.debug("Cancelled delete of {}", pendingDelete::getPathDisplay);
+                    pendingDelete.getCoveredPaths().stream()
+                        .filter(covered -> !isSameOrAncestor(covered, pathLower))
+                        .forEach(uncovered::add);
+                }
+            }
+            for (final String coveredPath : uncovered) {
+                addPending(new PendingDelete(coveredPath, 1));
+            }
+        });
+    }
+
+    private static boolean isSameOrAncestor(final String path, final String otherPathLower) {
+        final String pathLower = path.toLowerCase(Locale.getDefault());
+        return pathLower.equals(otherPathLower) || PathUtil.isUnder(otherPathLower, pathLower);
+    }
+
+    /**
+     * Adding new and retried deletes. Retried delete was already sent, so it
+     * was not cancelled if its path was created again meanwhile. Such delete
+     * is dropped, and the paths it covered are deleted one by one.
+     */
+    @Override
+    protected void addPending(final List<PendingDelete> entries) {
+        for (final PendingDelete delete : entries) {
+            if (delete.getAttempt() > 1 && existsLocally(delete.getPathDisplay())) {
+                LOG.debug("Not retrying delete of {}, as it was created again", delete::getPathDisplay);
+                delete.getCoveredPaths().stream()
+                    .filter(coveredPath -> !existsLocally(coveredPath))
+                    .forEach(coveredPath -> addPending(new PendingDelete(coveredPath, 1)));
+            } else {
+                addPending(delete);
+            }
+        }
+    }
+
+    private boolean existsLocally(final String dropboxPath) {
+        return localFolderService.buildFileObject(dropboxPath).exists();
+    }
+
+    @Override
+    protected List<PendingDelete> takePending(final int maxSize) {
+        final List<PendingDelete> batch = new ArrayList<>();
+        final Iterator<PendingDelete> iterator = pendingDeletes.values().iterator();
+        while (iterator.hasNext() && batch.size() < maxSize) {
+            batch.add(iterator.next());
+            iterator.remove();
+        }
+        return batch;
+    }
+
+    @Override
+    protected int countPending() {
+        return pendingDeletes.size();
+    }
+
+    private void addPending(final PendingDelete delete) {
+        final PendingDelete ancestor = findPendingAncestor(delete.getPathLower());
+        if (ancestor == null) {
+            final Iterator<PendingDelete> iterator = pendingDeletes.values().iterator();
+            while (iterator.hasNext()) {
+                final PendingDelete pendingDelete = iterator.next();
+                if (PathUtil.isUnder(pendingDelete.getPathLower(), delete.getPathLower())) {
+                    iterator.remove();
+                    delete.cover(pendingDelete);
+                }
+            }
+            pendingDeletes.put(delete.getPathLower(), delete);
+        } else {
+            ancestor.cover(delete);
+        }
+    }
+
+    private PendingDelete findPendingAncestor(final String pathLower) {
+        String parent = FilenameUtils.getFullPathNoEndSeparator(pathLower);
+        while (!parent.isEmpty() && !"/".equals(parent)) {
+            final PendingDelete pendingDelete = pendingDeletes.get(parent);
+            if (pendingDelete != null) {
+                return pendingDelete;
+            }
+            parent = FilenameUtils.getFullPathNoEndSeparator(parent);
+        }
+        return null;
+    }
+
+    @Override
+    protected JobState<DeleteBatchResult> submit(final List<PendingDelete> batch) {
+        final DeleteBatchLaunch launch = dropboxService.deleteBatch(batch.stream()
+                .map(PendingDelete::getPathDisplay)
+                .collect(Collectors.toList()));
+
+        if (launch.isComplete()) {
+            return JobState.complete(launch.getCompleteValue());
+        } else if (launch.isAsyncJobId()) {
+            return JobState.running(launch.getAsyncJobIdValue());
+        } else {
+            return JobState.unexpected(launch.tag());
+        }
+    }
+
+    @Override
+    protected JobState<DeleteBatchResult> check(final String asyncJobId) {
+        final DeleteBatchJobStatus status = dropboxService.checkDeleteBatch(asyncJobId);
+
+        if (status.isInProgress()) {
+            return JobState.running(asyncJobId);
+        } else if (status.isComplete()) {
+            return JobState.complete(status.getCompleteValue());
+        } else {
+            return JobState.unexpected(status.tag());
+        }
+    }
+
+    @Override
+    protected List<PendingDelete> complete(final List<PendingDelete> batch, final DeleteBatchResult result) {
+        final List<DeleteBatchResultEntry> resultEntries = result.getEntries();
+
+        final List<String> deleted = new ArrayList<>(resultEntries.size());
+        final List<PendingDelete> failed = new ArrayList<>();
+
+        for (int i = 0; i < resultEntries.size(); i++) {
+            final DeleteBatchResultEntry resultEntry = resultEntries.get(i);
+            final PendingDelete pendingDelete = batch.get(i);
+
+            if (resultEntry.isSuccess() || isNotFound(resultEntry.getFailureValue())) {
+                if (existsLocally(pendingDelete.getPathDisplay())) {
+                    LOG.warn("Deleted from Dropbox {}, but it was created locally again",
+                        pendingDelete::getPathDisplay);
+                } else {
+                    deleted.add(pendingDelete.getPathLower());
+                    LOG.info("Deleted from Dropbox {}", pendingDelete::getPathDisplay);
+                }
+            } else if (resultEntry.getFailureValue().isTooManyWriteOperations()) {
+                failed.add(pendingDelete);
+            } else {
+                LOG.error("Failed to delete {}: {}", pendingDelete::getPathDisplay, resultEntry::getFailureValue);
+            }
+        }
+
+        try {
+            metadataStore.deleteTreesByLowerPath(deleted);
+            localStateService.removeTrees(deleted);
+        } catch (final Exception ex) {
+            LOG.error("Failed to remove metadata of deleted paths", ex);
+        }
+
+        return failed;
+    }
+
+    private static boolean isNotFound(final DeleteError error) {
+        return error.isPathLookup() && error.getPathLookupValue().isNotFound();
+    }
+
+    @Override
+    protected PendingDelete nextAttempt(final PendingDelete entry) {
+        return entry.nextAttempt();
+    }
+
+    @Override
+    protected void giveUp(final PendingDelete entry) {
+        LOG.error("Giving up delete of {}", entry::getPathDisplay);
+    }
+
+    /**
+     * Path waiting for delete together with paths under it, which deletes
+     * were coalesced into this one.
+     */
+    @Data
+    static class PendingDelete implements AbstractAsyncBatcher.BatchEntry {
+        private final String pathDisplay;
+        private final String pathLower;
+        private final int attempt;
+        private final List<String> coveredPaths = new ArrayList<>();
+
+        PendingDelete(final String pathDisplay, final int attempt) {
+            this.pathDisplay = pathDisplay;
+            this.pathLower = pathDisplay.toLowerCase(Locale.getDefault());
+            this.attempt = attempt;
+        }
+
+        void cover(final PendingDelete other) {
+            coveredPaths.add(other.getPathDisplay());
+            coveredPaths.addAll(other.getCoveredPaths());
+        }
+
+        PendingDelete nextAttempt() {
+            final PendingDelete next = new PendingDelete(pathDisplay, attempt + 1);
+            next.coveredPaths.addAll(coveredPaths);
+            return next;
+        }
+    }
+
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package com.yet.dsync.service;
+
+import com.dropbox.core.v2.files.CreateFolderBatchJobStatus;
+import com.dropbox.core.v2.files.CreateFolderBatchLaunch;
+import com.dropbox.core.v2.files.CreateFolderBatchResult;
+import com.dropbox.core.v2.files.CreateFolderBatchResultEntry;
+import com.dropbox.core.v2.files.CreateFolderEntryError;
+import com.yet.dsync.dao.MetadataStore;
+import com.yet.dsync.dto.DropboxFileData;
+import com.yet.dsync.exception.DSyncClientException;
+import com.yet.dsync.util.DropboxUtil;
+import com.yet.dsync.util.PropertyUtil;
+import lombok.Data;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Creates folders in Dropbox in batches of up to
+ * {@value AbstractAsyncBatcher#MAX_BATCH_SIZE} folders. Local watcher sends
+ * only folders that are not created by upload of some file inside them, so
+ * copying deep tree of folders into the local folder needs a few batch calls
+ * instead of call per folder.
+ *
+ * Metadata of created folders is written in one transaction together with
+ * metadata of parent folders that Dropbox created implicitly, so they have
+ * rows before polling lists them. Folders that failed because of too many
+ * write operations are added to the next batch.
+ *
+ * The paths stay tracked in {@link GlobalOperationsTracker} until they are
+ * created.
+ */
+public class RemoteFolderBatcher
+        extends AbstractAsyncBatcher<RemoteFolderBatcher.BatchEntry, CreateFolderBatchResult> {
+
+    private static final Logger LOG = LogManager.getLogger(RemoteFolderBatcher.class);
+
+    private static final long FLUSH_INTERVAL_MS = PropertyUtil.getLong(
+            "dsync.folder.batchFlushMillis", 1000, 100, 60_000);
+
+    private static final String ROOT = "/";
+
+    private final DropboxService dropboxService;
+    private final MetadataStore metadataStore;
+    private final GlobalOperationsTracker globalOperationsTracker;
+
+    public RemoteFolderBatcher(final DropboxService dropboxService,
+                               final MetadataStore metadataStore,
+                               final GlobalOperationsTracker globalOperationsTracker) {
+        super("folder", FLUSH_INTERVAL_MS);
+        this.dropboxService = dropboxService;
+        this.metadataStore = metadataStore;
+        this.globalOperationsTracker = globalOperationsTracker;
+    }
+
+    /**
+     * Adding folder to the next batch. The path must be already tracked in
+     * global operations tracker. It will be stopped once the folder is
+     * created or failed.
+     *
+     * @param pathLower lower case path of the folder
+     * @param dropboxPath path of the folder
+     */
+    public void add(final String pathLower, final String dropboxPath) {
+        addEntries(Collections.singletonList(new BatchEntry(pathLower, dropboxPath, 1)));
+    }
+
+    @Override
+    protected JobState<CreateFolderBatchResult> submit(final List<BatchEntry> batch) {
+        final CreateFolderBatchLaunch launch = dropboxService.createFolderBatch(batch.stream()
+                .map(BatchEntry::getDropboxPath)
+                .collect(Collectors.toList()));
+
+        if (launch.isComplete()) {
+            return JobState.complete(launch.getCompleteValue());
+        } else if (launch.isAsyncJobId()) {
+            return JobState.running(launch.getAsyncJobIdValue());
+        } else {
+            return JobState.unexpected(launch.tag());
+        }
+    }
+
+    @Override
+    protected JobState<CreateFolderBatchResult> check(final String asyncJobId) {
+        final CreateFolderBatchJobStatus status = dropboxService.checkCreateFolderBatch(asyncJobId);
+
+        if (status.isInProgress()) {
+            return JobState.running(asyncJobId);
+        } else if (status.isComplete()) {
+            return JobState.complete(status.getCompleteValue());
+        } else {
+            return JobState.unexpected(status.tag());
+        }
+    }
+
+    @Override
+    protected List<BatchEntry> complete(final List<BatchEntry> batch, final CreateFolderBatchResult result) {
+        final List<CreateFolderBatchResultEntry> resultEntries = result.getEntries();
+
+        final List<DropboxFileData> created = new ArrayList<>(resultEntries.size());
+        final List<BatchEntry> completedEntries = new ArrayList<>(resultEntries.size());
+        final List<BatchEntry> failed = new ArrayList<>();
+
+        for (int i = 0; i < resultEntries.size(); i++) {
+            final CreateFolderBatchResultEntry resultEntry = resultEntries.get(i);
+            final BatchEntry entry = batch.get(i);
+
+            if (resultEntry.isSuccess()) {
+                created.add(DropboxUtil.convertMetadata(resultEntry.getSuccessValue().getMetadata()));
+                completedEntries.add(entry);
+            } else if (isConflict(resultEntry.getFailureValue())) {
+                LOG.debug("Folder already exists in Dropbox {}", entry::getDropboxPath);
+                completedEntries.add(entry);
+            } else if (isTooManyWriteOperations(resultEntry.getFailureValue())) {
+                failed.add(entry);
+            } else {
+                LOG.error("Failed to create folder {}: {}", entry::getDropboxPath, resultEntry::getFailureValue);
+                globalOperationsTracker.stop(entry.getPathLower());
+            }
+        }
+
+        try {
+            final List<DropboxFileData> folders = readImplicitParents(created);
+            folders.addAll(created);
+            metadataStore.writeAllLoaded(folders);
+            created.forEach(fileData -> LOG.info("Created in Dropbox {}", fileData::getPathDisplay));
+        } catch (final Exception ex) {
+            LOG.error("Failed to write metadata of created folders", ex);
+        } finally {
+            for (final BatchEntry entry : completedEntries) {
+                globalOperationsTracker.stop(entry.getPathLower());
+            }
+        }
+
+        return failed;
+    }
+
+    /**
+     * Reading metadata of parent folders that have no rows, as Dropbox
+     * created them together with the folders of the batch. Parents go before
+     * their children.
+     */
+    private List<DropboxFileData> readImplicitParents(final List<DropboxFileData> created) {
+        final Set<String> createdLower = created.stream()
+                .map(DropboxFileData::getPathLower)
+                .collect(Collectors.toCollection(HashSet::new));
+        final Map<String, DropboxFileData> parents = new LinkedHashMap<>();
+
+        for (final DropboxFileData fileData : created) {
+            final List<DropboxFileData> missing = new ArrayList<>();
+            String parent = FilenameUtils.getFullPathNoEndSeparator(fileData.getPathDisplay());
+            while (!parent.isEmpty() && !ROOT.equals(parent)) {
+                final String parentLower = parent.toLowerCase(Locale.getDefault());
+                if (parents.containsKey(parentLower) || createdLower.contains(parentLower)
+                        || metadataStore.readByLowerPath(parentLower) != null) {
+                    break;
+                }
+                try {
+                    missing.add(dropboxService.getMetadata(parent));
+                } catch (final DSyncClientException ex) {
+                    LOG.warn("Parent folder {} will get metadata from polling", parent);
+                    break;
+                }
+                parent = FilenameUtils.getFullPathNoEndSeparator(parent);
+            }
+            Collections.reverse(missing);
+            missing.forEach(parentData -> parents.put(parentData.getPathLower(), parentData));
+        }
+
+        return new ArrayList<>(parents.values());
+    }
+
+    private static boolean isConflict(final CreateFolderEntryError error) {
+        return error.isPath() && error.getPathValue().isConflict();
+    }
+
+    private static boolean isTooManyWriteOperations(final CreateFolderEntryError error) {
+        return error.isPath() && error.getPathValue().isTooManyWriteOperations();
+    }
+
+    @Override
+    protected BatchEntry nextAttempt(final BatchEntry entry) {
+        return new BatchEntry(entry.getPathLower(), entry.getDropboxPath(), entry.getAttempt() + 1);
+    }
+
+    @Override
+    protected void giveUp(final BatchEntry entry) {
+        LOG.error("Giving up creation of folder {}", entry::getDropboxPath);
+        globalOperationsTracker.stop(entry.getPathLower());
+    }
+
+    @Data
+    static class BatchEntry implements AbstractAsyncBatcher.BatchEntry {
+        private final String pathLower;
+        private final String dropboxPath;
+        private final int attempt;
+    }
+
+}
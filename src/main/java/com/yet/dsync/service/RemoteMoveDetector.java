@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.yet.dsync.service;
+
+import com.yet.dsync.dao.MetadataStore;
+import com.yet.dsync.dao.PendingDeleteDao;
+import com.yet.dsync.dto.DropboxFileData;
+import com.yet.dsync.dto.PendingDeleteData;
+import com.yet.dsync.exception.DSyncClientException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Detects remote moves in the changes listed from Dropbox. Dropbox reports a
+ * move as delete of the old path and a new entry with the same id. Entries
+ * are matched by id against stored metadata, and the matched ones are moved
+ * locally instead of deleting and downloading them again.
+ *
+ * Changes of the page are processed in path order, so moved folder goes
+ * before its content and the content is found at the new path already.
+ * Deletes are processed after other entries of the page. Delete of a path
+ * with known id is held until all pages are listed, as the new entry can
+ * come in one of the next pages.
+ *
+ * All entries are forwarded to the consumer afterwards, so download checks
+ * them as usual and skips the moved ones as not changed. If local move fails,
+ * the entry is downloaded and its old path is deleted as without detection.
+ *
+ * Deletes are saved as pending together with the checkpoint of their page
+ * and forwarded only after that. Pending deletes that were not applied before
+ * restart are held again. Delete stops being pending when it is applied or
+ * skipped, when its path is moved, or when a new entry is listed at its path.
+ * Held delete is dropped if it is not pending anymore by the time all changes
+ * are listed, as the path was created again locally, or if its path has
+ * metadata with other id.
+ */
+public class RemoteMoveDetector implements DropboxChange {
+
+    private static final Logger LOG = LogManager.getLogger(RemoteMoveDetector.class);
+
+    private final MetadataStore metadataStore;
+    private final LocalFolderService localFolderService;
+    private final LocalStateService localStateService;
+    private final GlobalOperationsTracker globalOperationsTracker;
+    private final Consumer<DropboxFileData> changeConsumer;
+
+    private final PendingDeleteDao pendingDeleteDao;
+
+    /* Held deletes by lower path, accessed only from polling thread */
+    private final Map<String, PendingDeleteData> heldDeletes = new HashMap<>();
+
+    /* Paths of pending deletes to remove with the next checkpoint */
+    private final Set<String> resolvedDeletes = new LinkedHashSet<>();
+
+    public RemoteMoveDetector(final MetadataStore metadataStore,
+                              final PendingDeleteDao pendingDeleteDao,
+                              final LocalFolderService localFolderService,
+                              final LocalStateService localStateService,
+                              final GlobalOperationsTracker globalOperationsTracker,
+                              final Consumer<DropboxFileData> changeConsumer) {
+        this.metadataStore = metadataStore;
+        this.localFolderService = localFolderService;
+        this.localStateService = localStateService;
+        this.globalOperationsTracker = globalOperationsTracker;
+        this.changeConsumer = changeConsumer;
+        this.pendingDeleteDao = pendingDeleteDao;
+
+        pendingDeleteDao.readAll().forEach(pendingDelete ->
+            heldDeletes.put(pendingDelete.getDelete().getPathLower(), pendingDelete));
+        if (!heldDeletes.isEmpty()) {
+            LOG.info("Holding {} deletes that were not applied before restart", heldDeletes::size);
+        }
+    }
+
+    @Override
+    public void processChange(final Set<DropboxFileData> data, final Runnable checkpoint) {
+        final List<DropboxFileData> changes = new ArrayList<>(data);
+        changes.sort(Comparator.comparing(DropboxFileData::getPathLower));
+
+        final List<DropboxFileData> entries = new ArrayList<>(changes.size());
+        final List<DropboxFileData> deletes = new ArrayList<>();
+        /* Paths which deletes are replaced by other changes of the page */
+        final Set<String> consumedPaths = new HashSet<>();
+        final Set<String> entryIds = new HashSet<>();
+        for (final DropboxFileData fileData : changes) {
+            if (fileData.getId() == null) {
+                deletes.add(fileData);
+            } else {
+                final DropboxFileData stored = metadataStore.readById(fileData.getId());
+                if (stored != null && !stored.getPathLower().equals(fileData.getPathLower())
+                        && moveLocally(stored, fileData)) {
+                    consumedPaths.add(stored.getPathLower());
+                }
+                resolveHeldDelete(fileData.getPathLower());
+                consumedPaths.add(fileData.getPathLower());
+                entryIds.add(fileData.getId());
+                entries.add(fileData);
+            }
+        }
+
+        final List<PendingDeleteData> pendingDeletes = new ArrayList<>(deletes.size());
+        for (final DropboxFileData fileData : deletes) {
+            if (consumedPaths.contains(fileData.getPathLower())) {
+                LOG.debug("Delete of {} is replaced by other change", fileData::getPathDisplay);
+                resolvedDeletes.add(fileData.getPathLower());
+            } else {
+                /* Metadata listed in the page at other path is not at the deleted path anymore */
+                final DropboxFileData stored = metadataStore.readByLowerPath(fileData.getPathLower());
+                final boolean noStored = stored == null || entryIds.contains(stored.getId());
+                pendingDeletes.add(new PendingDeleteData(fileData, noStored ? null : stored.getId()));
+            }
+        }
+
+        final List<String> resolved = new ArrayList<>(resolvedDeletes);
+        resolvedDeletes.clear();
+        metadataStore.writePage(entries, pendingDeleteDao.withCheckpoint(resolved, pendingDeletes, checkpoint));
+        entries.forEach(changeConsumer);
+
+        if (!pendingDeletes.isEmpty()) {
+            /* Delete can be applied only after it is saved as pending */
+            metadataStore.whenDurable().join();
+        }
+        for (final PendingDeleteData pendingDelete : pendingDeletes) {
+            final DropboxFileData fileData = pendingDelete.getDelete();
+            if (pendingDelete.getStoredId() == null) {
+                changeConsumer.accept(fileData);
+            } else {
+                LOG.trace("Holding delete of {} until all changes are listed", fileData::getPathDisplay);
+                heldDeletes.put(fileData.getPathLower(), pendingDelete);
+            }
+        }
+    }
+
+    @Override
+    public void processChangesListed() {
+        if (heldDeletes.isEmpty()) {
+            return;
+        }
+
+        /* Stored ids of pending deletes by lower path */
+        final Map<String, String> stillPending = new HashMap<>();
+        pendingDeleteDao.readAll().forEach(pendingDelete ->
+            stillPending.put(pendingDelete.getDelete().getPathLower(), pendingDelete.getStoredId()));
+
+        for (final PendingDeleteData pendingDelete : heldDeletes.values()) {
+            final DropboxFileData fileData = pendingDelete.getDelete();
+            if (stillPending.containsKey(fileData.getPathLower())
+                    && Objects.equals(stillPending.get(fileData.getPathLower()), pendingDelete.getStoredId())
+                    && !isCreatedAgain(pendingDelete)) {
+                changeConsumer.accept(fileData);
+            } else {
+                LOG.info("Dropped delete of {}, as it was created again", fileData::getPathDisplay);
+                pendingDeleteDao.delete(fileData.getPathLower());
+            }
+        }
+        heldDeletes.clear();
+    }
+
+    private boolean isCreatedAgain(final PendingDeleteData pendingDelete) {
+        final DropboxFileData stored = metadataStore.readByLowerPath(pendingDelete.getDelete().getPathLower());
+        return stored != null && !Objects.equals(stored.getId(), pendingDelete.getStoredId());
+    }
+
+    private void resolveHeldDelete(final String pathLower) {
+        if (heldDeletes.remove(pathLower) != null) {
+            resolvedDeletes.add(pathLower);
+        }
+    }
+
+    /**
+     * Moving stored file or folder to the path of the listed entry. Failure
+     * of the move doesn't stop the polling.
+     *
+     * @return true if it was moved
+     */
+    private boolean moveLocally(final DropboxFileData stored, final DropboxFileData fileData) {
+        final String fromPath = stored.getPathDisplay();
+        final String toPath = fileData.getPathDisplay();
+
+        globalOperationsTracker.start(stored.getPathLower());
+        globalOperationsTracker.start(fileData.getPathLower());
+        try {
+            if (localFolderService.moveFileOrFolder(fromPath, toPath)) {
+                metadataStore.moveTreeByLowerPath(stored.getPathLower(), toPath);
+                localStateService.moveTree(fromPath, toPath);
+                resolveHeldDelete(stored.getPathLower());
+                LOG.info("Moved locally from {} to {}", () -> fromPath, () -> toPath);
+                return true;
+            } else {
+                LOG.debug("Nothing to move locally from {} to {}", () -> fromPath, () -> toPath);
+                return false;
+            }
+        } catch (final DSyncClientException ex) {
+            LOG.warn("Failed to move locally from " + fromPath + " to " + toPath + ". Downloading it again", ex);
+            return false;
+        } finally {
+            globalOperationsTracker.stop(stored.getPathLower());
+            globalOperationsTracker.stop(fileData.getPathLower());
+        }
+    }
+
+}
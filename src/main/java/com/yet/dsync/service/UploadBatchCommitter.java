@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+package com.yet.dsync.service;
+
+import com.dropbox.core.v2.files.UploadSessionFinishArg;
+import com.dropbox.core.v2.files.UploadSessionFinishBatchJobStatus;
+import com.dropbox.core.v2.files.UploadSessionFinishBatchLaunch;
+import com.dropbox.core.v2.files.UploadSessionFinishBatchResult;
+import com.dropbox.core.v2.files.UploadSessionFinishBatchResultEntry;
+import com.yet.dsync.dao.MetadataStore;
+import com.yet.dsync.dto.DropboxFileData;
+import com.yet.dsync.util.DropboxUtil;
+import com.yet.dsync.util.PropertyUtil;
+import lombok.Data;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Commits small files, which content was uploaded in closed upload sessions,
+ * in batches of up to {@value AbstractAsyncBatcher#MAX_BATCH_SIZE} files. One
+ * batch commit takes the namespace lock only once, so it is much faster for
+ * many small files than committing each of them separately.
+ *
+ * The committed files are written to the database in one transaction. The
+ * files that failed because of too many write operations are added to the
+ * next batch.
+ *
+ * The paths stay tracked in {@link GlobalOperationsTracker} until they are
+ * committed.
+ */
+public class UploadBatchCommitter
+        extends AbstractAsyncBatcher<UploadBatchCommitter.BatchEntry, UploadSessionFinishBatchResult> {
+
+    private static final Logger LOG = LogManager.getLogger(UploadBatchCommitter.class);
+
+    private static final long FLUSH_INTERVAL_MS = PropertyUtil.getLong(
+            "dsync.upload.batchFlushMillis", 1000, 100, 60_000);
+
+    private final DropboxService dropboxService;
+    private final MetadataStore metadataStore;
+    private final GlobalOperationsTracker globalOperationsTracker;
+
+    public UploadBatchCommitter(final DropboxService dropboxService,
+                                final MetadataStore metadataStore,
+                                final GlobalOperationsTracker globalOperationsTracker) {
+        super("upload", FLUSH_INTERVAL_MS);
+        this.dropboxService = dropboxService;
+        this.metadataStore = metadataStore;
+        this.globalOperationsTracker = globalOperationsTracker;
+    }
+
+    /**
+     * Adding uploaded file to the next batch. The path must be already
+     * tracked in global operations tracker. It will be stopped once the file
+     * is committed or failed.
+     *
+     * @param pathLower lower case path of the file
+     * @param finishArg upload session cursor and commit info of the file
+     */
+    public void add(final String pathLower, final UploadSessionFinishArg finishArg) {
+        addEntries(Collections.singletonList(new BatchEntry(pathLower, finishArg, 1)));
+    }
+
+    @Override
+    protected JobState<UploadSessionFinishBatchResult> submit(final List<BatchEntry> batch) {
+        final UploadSessionFinishBatchLaunch launch = dropboxService.finishUploadBatch(batch.stream()
+                .map(BatchEntry::getFinishArg)
+                .collect(Collectors.toList()));
+
+        if (launch.isComplete()) {
+            return JobState.complete(launch.getCompleteValue());
+        } else if (launch.isAsyncJobId()) {
+            return JobState.running(launch.getAsyncJobIdValue());
+        } else {
+            return JobState.unexpected(launch.tag());
+        }
+    }
+
+    @Override
+    protected JobState<UploadSessionFinishBatchResult> check(final String asyncJobId) {
+        final UploadSessionFinishBatchJobStatus status = dropboxService.checkUploadBatch(asyncJobId);
+
+        if (status.isInProgress()) {
+            return JobState.running(asyncJobId);
+        } else if (status.isComplete()) {
+            return JobState.complete(status.getCompleteValue());
+        } else {
+            return JobState.unexpected(status.tag());
+        }
+    }
+
+    @Override
+    protected List<BatchEntry> complete(final List<BatchEntry> batch, final UploadSessionFinishBatchResult result) {
+        final List<UploadSessionFinishBatchResultEntry> resultEntries = result.getEntries();
+
+        final List<DropboxFileData> committed = new ArrayList<>(resultEntries.size());
+        final List<BatchEntry> committedEntries = new ArrayList<>(resultEntries.size());
+        final List<BatchEntry> failed = new ArrayList<>();
+
+        for (int i = 0; i < resultEntries.size(); i++) {
+            final UploadSessionFinishBatchResultEntry resultEntry = resultEntries.get(i);
+            final BatchEntry entry = batch.get(i);
+
+            if (resultEntry.isSuccess()) {
+                committed.add(DropboxUtil.convertMetadata(resultEntry.getSuccessValue()));
+                committedEntries.add(entry);
+            } else if (resultEntry.getFailureValue().isTooManyWriteOperations()) {
+                failed.add(entry);
+            } else {
+                LOG.error("Failed to commit upload of {}: {}", entry::getPathLower, resultEntry::getFailureValue);
+                globalOperationsTracker.stop(entry.getPathLower());
+            }
+        }
+
+        try {
+            metadataStore.writeAllLoaded(committed);
+            committed.forEach(fileData -> LOG.info("Uploaded to Dropbox {}", fileData::getPathDisplay));
+        } catch (final Exception ex) {
+            LOG.error("Failed to write metadata of committed files", ex);
+        } finally {
+            for (final BatchEntry entry : committedEntries) {
+                globalOperationsTracker.stop(entry.getPathLower());
+            }
+        }
+
+        return failed;
+    }
+
+    @Override
+    protected BatchEntry nextAttempt(final BatchEntry entry) {
+        return new BatchEntry(entry.getPathLower(), entry.getFinishArg(), entry.getAttempt() + 1);
+    }
+
+    @Override
+    protected void giveUp(final BatchEntry entry) {
+        LOG.error("Giving up commit of uploaded file {}", entry::getPathLower);
+        globalOperationsTracker.stop(entry.getPathLower());
+    }
+
+    @Data
+    static class BatchEntry implements AbstractAsyncBatcher.BatchEntry {
+        private final String pathLower;
+        private final UploadSessionFinishArg finishArg;
+        private final int attempt;
+    }
+
+}
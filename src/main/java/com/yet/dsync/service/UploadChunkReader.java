@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.yet.dsync.service;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Reads file in chunks using positional reads from {@link FileChannel}. The
+ * chunks are read ahead in separate thread pool, so the next chunk is already
+ * in memory when the previous one is being sent to Dropbox. The number of
+ * chunks that are read ahead for one file is limited by
+ * <code>readAhead</code>, which also limits the memory taken by one upload.
+ */
+class UploadChunkReader implements Closeable {
+
+    private final FileChannel channel;
+    private final long size;
+    private final int chunkSize;
+    private final int readAhead;
+    private final ExecutorService readExecutor;
+
+    private final Deque<Future<ByteBuffer>> chunks = new ArrayDeque<>();
+
+    private long nextReadPosition;
+
+    UploadChunkReader(final FileChannel channel, final long startPosition, final long size,
+                      final int chunkSize, final int readAhead, final ExecutorService readExecutor) {
+        this.channel = channel;
+        this.size = size;
+        this.chunkSize = chunkSize;
+        this.readAhead = readAhead;
+        this.readExecutor = readExecutor;
+        this.nextReadPosition = startPosition;
+
+        scheduleReads();
+    }
+
+    public boolean hasNext() {
+        return !chunks.isEmpty();
+    }
+
+    /**
+     * Returns next chunk of the file. Blocks if chunk is not read yet.
+     *
+     * @return buffer with chunk data ready to be read
+     * @throws IOException if reading from file failed
+     */
+    public ByteBuffer next() throws IOException {
+        final Future<ByteBuffer> chunk = chunks.poll();
+        if (chunk == null) {
+            throw new EOFException("No more chunks to read");
+        }
+        scheduleReads();
+        try {
+            return chunk.get();
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw (InterruptedIOException) new InterruptedIOException("Interrupted while reading chunk").initCause(ex);
+        } catch (final ExecutionException ex) {
+            throw new IOException("Failed to read chunk", ex);
+        }
+    }
+
+    private void scheduleReads() {
+        while (chunks.size() < readAhead && nextReadPosition < size) {
+            final long position = nextReadPosition;
+            final int length = (int) Math.min(chunkSize, size - position);
+            chunks.add(readExecutor.submit(() -> readChunk(position, length)));
+            nextReadPosition += length;
+        }
+    }
+
+    private ByteBuffer readChunk(final long position, final int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new EOFException("File is shorter than expected. Was it truncated?");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    @Override
+    public void close() {
+        chunks.forEach(chunk -> chunk.cancel(false));
+        chunks.clear();
+    }
+
+}
@@ -0,0 +1,26 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.yet.dsync.service;
+
+/**
+ * Listener that is notified when chunk of the file was uploaded in upload
+ * session, so the session can be resumed from that offset later.
+ */
+@FunctionalInterface
+public interface UploadProgressListener {
+
+    void chunkUploaded(String sessionId, long offset);
+
+}
@@ -14,41 +14,71 @@
 
 package com.yet.dsync.service;
 
-import com.yet.dsync.dao.MetadataDao;
+import com.dropbox.core.v2.files.UploadSessionFinishArg;
+import com.yet.dsync.dao.MetadataStore;
+import com.yet.dsync.dao.PendingDeleteDao;
+import com.yet.dsync.dao.UploadSessionDao;
 import com.yet.dsync.dto.DropboxFileData;
 import com.yet.dsync.dto.LocalFolderChangeType;
 import com.yet.dsync.dto.LocalFolderData;
+import com.yet.dsync.dto.UploadSessionData;
 import com.yet.dsync.exception.DSyncClientException;
+import com.yet.dsync.util.PropertyUtil;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
+import java.util.Collection;
 import java.util.Date;
 import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
 public class UploadService
         extends AbstractChangeProcessingService<LocalFolderData> {
 
     private static final Logger LOG = LogManager.getLogger(UploadService.class);
 
-    private final MetadataDao metadataDao;
+    /* Dropbox keeps upload session for 7 days. Leaving some time to finish the upload */
+    private static final long UPLOAD_SESSION_TTL_MILLIS = TimeUnit.DAYS.toMillis(6);
+
+    /* Files smaller than that are committed in batches. Zero disables batch commits */
+    private static final long BATCH_UPLOAD_THRESHOLD = PropertyUtil.getLong(
+            "dsync.upload.batchThreshold", 4 * 1024 * 1024, 0, 150 * 1024 * 1024);
+
+    private final MetadataStore metadataStore;
+    private final UploadSessionDao uploadSessionDao;
+    private final PendingDeleteDao pendingDeleteDao;
     private final LocalFolderService localFolderService;
     private final DropboxService dropboxService;
+    private final LocalStateService localStateService;
+    private final UploadBatchCommitter uploadBatchCommitter;
+    private final RemoteDeleteBatcher remoteDeleteBatcher;
+    private final RemoteFolderBatcher remoteFolderBatcher;
 
     public UploadService(final GlobalOperationsTracker globalOperationsTracker,
-                         final MetadataDao metadataDao,
+                         final MetadataStore metadataStore,
+                         final UploadSessionDao uploadSessionDao,
+                         final PendingDeleteDao pendingDeleteDao,
                          final LocalFolderService localFolderService,
-                         final DropboxService dropboxService) {
+                         final DropboxService dropboxService,
+                         final LocalStateService localStateService) {
         super("upload", globalOperationsTracker);
-        this.metadataDao = metadataDao;
+        this.metadataStore = metadataStore;
+        this.uploadSessionDao = uploadSessionDao;
+        this.pendingDeleteDao = pendingDeleteDao;
         this.localFolderService = localFolderService;
         this.dropboxService = dropboxService;
+        this.localStateService = localStateService;
+        this.uploadBatchCommitter = new UploadBatchCommitter(dropboxService, metadataStore, globalOperationsTracker);
+        this.remoteDeleteBatcher = new RemoteDeleteBatcher(dropboxService, metadataStore, localStateService,
+            localFolderService);
+        this.remoteFolderBatcher = new RemoteFolderBatcher(dropboxService, metadataStore, globalOperationsTracker);
     }
 
     @Override
@@ -56,45 +86,151 @@ public class UploadService
         uploadData(changeData);
     }
 
-    @SuppressWarnings("PMD.ConfusingTernary")
     private void uploadData(final LocalFolderData changeData) {
         final String dropboxPath = extractPath(changeData);
+        final String pathLower = dropboxPath.toLowerCase(Locale.getDefault());
 
-        getGlobalOperationsTracker().start(dropboxPath.toLowerCase(Locale.getDefault()));
+        boolean commitDeferred = false;
+        getGlobalOperationsTracker().start(pathLower);
         try {
-            if (!changeData.fileExists()) {
-                deleteData(dropboxPath);
-                LOG.info("Deleted from Dropbox {}", () -> dropboxPath);
-
-            } else if (changeData.isDirectory()) {
-                if (LocalFolderChangeType.CREATE == changeData.getChangeType()) {
-                    createDirectory(dropboxPath);
-                    LOG.info("Created in Dropbox {}", () -> dropboxPath);
-                } else {
-                    LOG.info("Modify on local folder. Doing nothing for {}", () -> dropboxPath);
-                }
+            if (LocalFolderChangeType.MOVE == changeData.getChangeType()) {
+                commitDeferred = moveData(dropboxPath, changeData);
+            } else if (changeData.fileExists()) {
+                remoteDeleteBatcher.cancel(dropboxPath);
+                /* Delete listed from Dropbox before the path was created locally must not remove it */
+                pendingDeleteDao.delete(pathLower);
+                commitDeferred = uploadExisting(dropboxPath, changeData);
+            } else {
+                remoteDeleteBatcher.add(dropboxPath);
+                LOG.debug("Scheduled delete from Dropbox {}", () -> dropboxPath);
+            }
+        } finally {
+            if (!commitDeferred) {
+                getGlobalOperationsTracker().stop(pathLower);
+            }
+        }
+    }
 
+    /**
+     * Moving file or folder in Dropbox instead of deleting and uploading it
+     * again. Paths of everything under moved folder are rewritten in
+     * metadata, as Dropbox keeps their ids. If the move fails (e.g. the
+     * target exists), falling back to upload of the new path and delete of
+     * the old one.
+     *
+     * @return true if commit of the file is deferred to the batch
+     */
+    private boolean moveData(final String dropboxPath, final LocalFolderData changeData) {
+        final String fromPath = localFolderService.extractDropboxPath(changeData.getSourcePath());
+        final String fromPathLower = fromPath.toLowerCase(Locale.getDefault());
+
+        getGlobalOperationsTracker().start(fromPathLower);
+        try {
+            remoteDeleteBatcher.cancel(dropboxPath);
+            pendingDeleteDao.delete(dropboxPath.toLowerCase(Locale.getDefault()));
+            final DropboxFileData fileData = dropboxService.move(fromPath, dropboxPath);
+
+            if (changeData.isDirectory()) {
+                metadataStore.moveTreeByLowerPath(fromPathLower, dropboxPath);
+                localStateService.moveTree(fromPath, dropboxPath);
             } else {
-                uploadFile(dropboxPath, changeData);
-                LOG.info("Uploaded to Dropbox {}", () -> dropboxPath);
+                localStateService.move(fromPath, changeData.getPath(), dropboxPath);
             }
+            metadataStore.write(fileData);
+            metadataStore.writeLoadedFlag(fileData.getId());
+
+            LOG.info("Moved in Dropbox from {} to {}", () -> fromPath, () -> dropboxPath);
+            return false;
+        } catch (final DSyncClientException ex) {
+            LOG.warn("Failed to move {}. Uploading it again", () -> fromPath);
+            remoteDeleteBatcher.add(fromPath);
+            if (changeData.isDirectory()) {
+                scheduleTreeUpload(changeData.getPath());
+            }
+            return changeData.fileExists()
+                && uploadExisting(dropboxPath, new LocalFolderData(changeData.getPath(), LocalFolderChangeType.CREATE));
         } finally {
-            getGlobalOperationsTracker().stop(dropboxPath.toLowerCase(Locale.getDefault()));
+            getGlobalOperationsTracker().stop(fromPathLower);
         }
     }
 
-    private void uploadFile(final String dropboxPath, final LocalFolderData changeData) {
-        final File file = changeData.getPath().toFile();
+    private void scheduleTreeUpload(final Path dir) {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.filter(Files::isRegularFile)
+                .forEach(file -> scheduleProcessing(new LocalFolderData(file, LocalFolderChangeType.CREATE)));
+        } catch (final IOException ex) {
+            LOG.error("Failed to schedule upload of " + dir, ex);
+        }
+    }
+
+    /**
+     * Uploading local file or creating directory.
+     *
+     * @return true if commit of the file or folder is deferred to the batch
+     */
+    private boolean uploadExisting(final String dropboxPath, final LocalFolderData changeData) {
+        boolean commitDeferred = false;
+
+        if (changeData.isDirectory()) {
+            if (LocalFolderChangeType.CREATE == changeData.getChangeType()) {
+                remoteFolderBatcher.add(dropboxPath.toLowerCase(Locale.getDefault()), dropboxPath);
+                commitDeferred = true;
+                LOG.debug("Scheduled folder creation in Dropbox {}", () -> dropboxPath);
+            } else {
+                LOG.info("Modify on local folder. Doing nothing for {}", () -> dropboxPath);
+            }
+
+        } else if (isSameContent(dropboxPath, changeData)) {
+            LOG.info("Content is not changed. Skipping upload of {}", () -> dropboxPath);
+
+        } else if (changeData.getSize() < BATCH_UPLOAD_THRESHOLD) {
+            uploadFileForBatch(dropboxPath, changeData);
+            commitDeferred = true;
+            LOG.debug("Uploaded to Dropbox {}. Waiting for batch commit", () -> dropboxPath);
+
+        } else {
+            uploadFile(dropboxPath, changeData);
+            LOG.info("Uploaded to Dropbox {}", () -> dropboxPath);
+        }
+
+        return commitDeferred;
+    }
 
+    /**
+     * Checking if local file has the same content as the file in Dropbox, so
+     * it doesn't need to be uploaded. Content hash is calculated only if size
+     * of the file is the same.
+     */
+    private boolean isSameContent(final String dropboxPath, final LocalFolderData changeData) {
+        final DropboxFileData existingFileData = metadataStore
+                .readByLowerPath(dropboxPath.toLowerCase(Locale.getDefault()));
+        if (existingFileData == null || existingFileData.getContentHash() == null
+                || existingFileData.getSize() == null
+                || existingFileData.getSize() != changeData.getSize()) {
+            return false;
+        }
+
+        try {
+            return existingFileData.getContentHash()
+                    .equals(localStateService.contentHash(changeData.getPath(), dropboxPath));
+        } catch (final IOException ex) {
+            LOG.warn("Failed to calculate content hash of " + changeData.getPath(), ex);
+            return false;
+        }
+    }
+
+    private Date getLastModifiedDate(final File file) {
         final long lastModified = file.lastModified();
-        final Date lastModifiedDate = (lastModified == 0L) ? new Date() : new Date(lastModified);
+        return (lastModified == 0L) ? new Date() : new Date(lastModified);
+    }
 
+    private boolean isOverride(final String dropboxPath, final Date lastModifiedDate) {
         final LocalDateTime lastModifiedDateTime = LocalDateTime.ofInstant(lastModifiedDate.toInstant(),
                 ZoneOffset.UTC);
 
         LOG.debug("File modified dateTime is {} for {}", lastModifiedDateTime.toString(), dropboxPath);
 
-        final DropboxFileData existingFileData = metadataDao.
+        final DropboxFileData existingFileData = metadataStore.
                 readByLowerPath(dropboxPath.toLowerCase(Locale.getDefault()));
         final boolean override;
         if (existingFileData == null) {
@@ -107,33 +243,95 @@ public class UploadService
             override = false;
             LOG.debug("Existing file info is found and serverModified is later for {}", () -> dropboxPath);
         }
+        return override;
+    }
 
-        try (InputStream is = new BufferedInputStream(
-                new FileInputStream(file))) {
+    private void uploadFileForBatch(final String dropboxPath, final LocalFolderData changeData) {
+        final File file = changeData.getPath().toFile();
+        final Date lastModifiedDate = getLastModifiedDate(file);
 
-            final DropboxFileData fileData = dropboxService.uploadFile(dropboxPath,
-                    is, changeData.getSize(), lastModifiedDate, override);
+        final UploadSessionFinishArg finishArg = dropboxService.uploadForBatch(dropboxPath,
+                file, lastModifiedDate, isOverride(dropboxPath, lastModifiedDate));
 
-            metadataDao.write(fileData);
-            metadataDao.writeLoadedFlag(fileData.getId());
+        uploadBatchCommitter.add(dropboxPath.toLowerCase(Locale.getDefault()), finishArg);
+    }
 
-        } catch (final IOException ex) {
-            LOG.error("Error when reading file for upload", ex);
-            throw new DSyncClientException(ex);
+    private void uploadFile(final String dropboxPath, final LocalFolderData changeData) {
+        final File file = changeData.getPath().toFile();
+
+        final long lastModified = file.lastModified();
+        final Date lastModifiedDate = getLastModifiedDate(file);
+        final boolean override = isOverride(dropboxPath, lastModifiedDate);
+
+        final String pathLower = dropboxPath.toLowerCase(Locale.getDefault());
+        final long size = file.length();
+        final UploadSessionData resumeSession = findResumableSession(pathLower, size, lastModified);
+        final long started = System.currentTimeMillis();
+
+        final DropboxFileData fileData = dropboxService.uploadFile(dropboxPath,
+                file, lastModifiedDate, override, resumeSession,
+            (sessionId, offset) -> uploadSessionDao.write(UploadSessionData.builder()
+                    .pathLower(pathLower)
+                    .pathDisplay(dropboxPath)
+                    .sessionId(sessionId)
+                    .offset(offset)
+                    .size(size)
+                    .lastModified(lastModified)
+                    .started(isSameSession(resumeSession, sessionId) ? resumeSession.getStarted() : started)
+                    .build()));
+
+        uploadSessionDao.delete(pathLower);
+
+        metadataStore.write(fileData);
+        metadataStore.writeLoadedFlag(fileData.getId());
+
+        if (file.length() == size && file.lastModified() == lastModified) {
+            localStateService.record(file.toPath(), dropboxPath, fileData.getContentHash());
         }
     }
 
-    private void createDirectory(final String dropboxPath) {
-        final DropboxFileData fileData = dropboxService.createFolder(dropboxPath);
+    private UploadSessionData findResumableSession(final String pathLower, final long size,
+                                                   final long lastModified) {
+        final UploadSessionData sessionData = uploadSessionDao.read(pathLower);
+        if (sessionData == null) {
+            return null;
+        } else if (isResumable(sessionData, size, lastModified)) {
+            LOG.debug("Found upload session at offset {} for {}", sessionData::getOffset, () -> pathLower);
+            return sessionData;
+        } else {
+            LOG.debug("Discarding stale upload session for {}", () -> pathLower);
+            uploadSessionDao.delete(pathLower);
+            return null;
+        }
+    }
 
-        metadataDao.write(fileData);
-        metadataDao.writeLoadedFlag(fileData.getId());
+    private boolean isResumable(final UploadSessionData sessionData, final long size, final long lastModified) {
+        return sessionData.isSameFile(size, lastModified)
+            && System.currentTimeMillis() - sessionData.getStarted() < UPLOAD_SESSION_TTL_MILLIS;
     }
 
-    private void deleteData(final String dropboxPath) {
-        dropboxService.deleteFile(dropboxPath);
+    private boolean isSameSession(final UploadSessionData sessionData, final String sessionId) {
+        return sessionData != null && sessionData.getSessionId().equals(sessionId);
+    }
 
-        metadataDao.deleteByLowerPath(dropboxPath.toLowerCase(Locale.getDefault()));
+    /**
+     * Scheduling upload of files which chunked upload was interrupted when
+     * client was stopped. Sessions of files that were changed or removed
+     * since then are discarded.
+     */
+    public void resumeAllNotFinished() {
+        final Collection<UploadSessionData> allSessions = uploadSessionDao.readAll();
+        LOG.debug("Found {} not finished uploads", allSessions::size);
+
+        allSessions.forEach(sessionData -> {
+            final File file = localFolderService.buildFileObject(sessionData.getPathDisplay());
+            if (file.isFile() && isResumable(sessionData, file.length(), file.lastModified())) {
+                scheduleProcessing(new LocalFolderData(file.toPath(), LocalFolderChangeType.MODIFY));
+            } else {
+                LOG.debug("Discarding stale upload session for {}", sessionData::getPathDisplay);
+                uploadSessionDao.delete(sessionData.getPathLower());
+            }
+        });
     }
 
     private String extractPath(final LocalFolderData changeData) {
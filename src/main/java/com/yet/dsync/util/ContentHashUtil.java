@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.yet.dsync.util;
+
+import com.google.common.io.BaseEncoding;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Calculates Dropbox content hash of local files. The file is split into
+ * blocks of 4MB, SHA-256 is calculated for each block, and the content hash
+ * is SHA-256 of all block hashes concatenated together, written as lower
+ * case hex string. The same value is returned by Dropbox in
+ * <code>FileMetadata.getContentHash()</code>.
+ */
+public final class ContentHashUtil {
+
+    public static final int BLOCK_SIZE = 4 * 1024 * 1024;
+
+    private static final String HASH_ALGORITHM = "SHA-256";
+
+    private ContentHashUtil() { }
+
+    public static String hash(final Path file) throws IOException {
+        final MessageDigest overallDigest = newDigest();
+        final ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (readBlock(channel, block)) {
+                block.flip();
+                overallDigest.update(hashBlock(block));
+                block.clear();
+            }
+        }
+
+        return toHex(overallDigest.digest());
+    }
+
+    /**
+     * Calculates hash of one block.
+     *
+     * @param block
+     *            buffer with remaining bytes of the block
+     * @return SHA-256 of the block
+     */
+    public static byte[] hashBlock(final ByteBuffer block) {
+        final MessageDigest blockDigest = newDigest();
+        blockDigest.update(block);
+        return blockDigest.digest();
+    }
+
+    /**
+     * Combines hashes of all blocks into the content hash.
+     *
+     * @param blockHashes
+     *            SHA-256 of each block in the order of blocks in the file
+     * @return content hash as lower case hex string
+     */
+    public static String combine(final byte[][] blockHashes) {
+        final MessageDigest overallDigest = newDigest();
+        for (final byte[] blockHash : blockHashes) {
+            overallDigest.update(blockHash);
+        }
+        return toHex(overallDigest.digest());
+    }
+
+    /**
+     * Reading until buffer is full or end of file is reached.
+     *
+     * @param channel
+     *            channel to read from its current position
+     * @param block
+     *            buffer to fill
+     * @return true if at least one byte was read
+     * @throws IOException
+     *             if reading failed
+     */
+    private static boolean readBlock(final FileChannel channel, final ByteBuffer block) throws IOException {
+        int read = 0;
+        while (block.hasRemaining() && read >= 0) {
+            read = channel.read(block);
+        }
+        return block.position() > 0;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (final NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is not supported", ex);
+        }
+    }
+
+    private static String toHex(final byte[] bytes) {
+        return BaseEncoding.base16().lowerCase().encode(bytes);
+    }
+
+}
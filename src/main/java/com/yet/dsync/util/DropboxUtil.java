@@ -49,7 +49,8 @@ public final class DropboxUtil {
                 .rev(fileMetadata.getRev())
                 .size(fileMetadata.getSize())
                 .clientModified(LocalDateTime.ofInstant(clientModifiedInstant, zoneId))
-                .serverModified(LocalDateTime.ofInstant(serverModifiedInstant, zoneId));
+                .serverModified(LocalDateTime.ofInstant(serverModifiedInstant, zoneId))
+                .contentHash(fileMetadata.getContentHash());
         }
 
         return builder.build();
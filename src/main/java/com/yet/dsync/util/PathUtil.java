@@ -18,11 +18,86 @@ import org.apache.commons.io.FilenameUtils;
 
 import java.io.File;
 import java.nio.file.Path;
+import java.util.regex.Pattern;
 
 public final class PathUtil {
 
+    /**
+     * Suffix of hidden files that hold partially downloaded content until it
+     * is complete and can be moved in place of the real file.
+     */
+    public static final String DOWNLOAD_TEMP_SUFFIX = ".dsync-part";
+
+    private static final String HIDDEN_PREFIX = ".";
+
+    private static final char SEPARATOR = '/';
+
     private PathUtil() { }
 
+    /**
+     * Builds path of the temporary download file for the given target file
+     * and revision. The temporary file is placed in the same directory, so
+     * it can be atomically moved over the target.
+     *
+     * @param target
+     *            file that is being downloaded
+     * @param rev
+     *            revision of the file on Dropbox
+     * @return path of the temporary file
+     */
+    public static Path buildDownloadTempPath(final Path target, final String rev) {
+        return target.resolveSibling(HIDDEN_PREFIX + target.getFileName() + "." + rev + DOWNLOAD_TEMP_SUFFIX);
+    }
+
+    /**
+     * Pattern of file names of temporary download files of all revisions of
+     * the given target file. Revision part can't have dots, so temporary files
+     * of other targets, which names start with the same name, are not matched.
+     *
+     * @param target
+     *            file that is being downloaded
+     * @return pattern matching file names of temporary files
+     */
+    public static Pattern downloadTempPattern(final Path target) {
+        return Pattern.compile(Pattern.quote(HIDDEN_PREFIX + target.getFileName() + ".")
+            + "[^.]+" + Pattern.quote(DOWNLOAD_TEMP_SUFFIX));
+    }
+
+    /**
+     * Lowest path that is inside the given directory. Together with
+     * {@link #subtreeUpperBound(String)} it allows to select all paths under
+     * the directory with index range query.
+     *
+     * @param dirPath
+     *            directory path
+     * @return first path under directory in lexicographical order
+     */
+    public static String subtreeLowerBound(final String dirPath) {
+        return dirPath + SEPARATOR;
+    }
+
+    /**
+     * Path right after all paths that are inside the given directory.
+     *
+     * @param dirPath
+     *            directory path
+     * @return path that is bigger than any path under the directory
+     */
+    public static String subtreeUpperBound(final String dirPath) {
+        return dirPath + (char) (SEPARATOR + 1);
+    }
+
+    public static boolean isUnder(final String path, final String dirPath) {
+        return path.startsWith(subtreeLowerBound(dirPath));
+    }
+
+    public static boolean isDownloadTempFile(final Path path) {
+        final Path fileName = path.getFileName();
+        return fileName != null
+            && fileName.toString().startsWith(HIDDEN_PREFIX)
+            && fileName.toString().endsWith(DOWNLOAD_TEMP_SUFFIX);
+    }
+
     public static String extractDropboxPath(final String localDir, final String fullPath) {
         final String localDirNorm = FilenameUtils.normalize(localDir, true);
         final String fullPathNorm = FilenameUtils.normalize(fullPath, true);
@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.yet.dsync.util;
+
+import org.apache.commons.lang3.EnumUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+
+import java.util.Locale;
+
+/**
+ * Reads tuning parameters from system properties (-Dname=value). If property
+ * is not set or can't be parsed, then default value is returned.
+ */
+public final class PropertyUtil {
+
+    private PropertyUtil() { }
+
+    public static int getInt(final String name, final int defaultValue) {
+        return NumberUtils.toInt(System.getProperty(name), defaultValue);
+    }
+
+    public static long getLong(final String name, final long defaultValue) {
+        return NumberUtils.toLong(System.getProperty(name), defaultValue);
+    }
+
+    public static int getInt(final String name, final int defaultValue, final int min, final int max) {
+        return Math.max(min, Math.min(max, getInt(name, defaultValue)));
+    }
+
+    public static long getLong(final String name, final long defaultValue, final long min, final long max) {
+        return Math.max(min, Math.min(max, getLong(name, defaultValue)));
+    }
+
+    public static <E extends Enum<E>> E getEnum(final String name, final Class<E> enumClass, final E defaultValue) {
+        final String value = System.getProperty(name);
+        final E enumValue = value == null ? null
+            : EnumUtils.getEnum(enumClass, value.trim().toUpperCase(Locale.ENGLISH));
+        return enumValue == null ? defaultValue : enumValue;
+    }
+
+}